@@ -0,0 +1,183 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import junit.framework.AssertionFailedError;
+import org.hamcrest.StringDescription;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Remembers how many bytes an upcoming method call may allocate, and how to
+ * measure it.
+ *
+ * This is an internal class, used only in builders for allocation
+ * assertions. See {@link Dupple#assertAllocatesAtMost(long)} for example
+ * use.
+ *
+ * @author Google
+ */
+public class AllocationAssertionBuilder {
+  private static final Method NOTHING;
+  static {
+    try {
+      NOTHING = Nothing.class.getDeclaredMethod("call");
+      NOTHING.setAccessible(true);
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private final long budgetBytes;
+  private int runs = 100;
+  private int warmUps = 1000;
+
+  /**
+   * Constructs an {@link AllocationAssertionBuilder} that will expect calls
+   * to allocate no more than {@code budgetBytes} each.
+   */
+  protected AllocationAssertionBuilder(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Measures {@code runs} calls, and holds their average to the budget.
+   * Defaults to 100.
+   */
+  public AllocationAssertionBuilder overRuns(int runs) {
+    if (runs < 1) {
+      throw new IllegalArgumentException("Cannot measure " + runs + " runs");
+    }
+    this.runs = runs;
+    return this;
+  }
+
+  /**
+   * Makes the quoted call {@code iterations} times, unmeasured, before
+   * measuring it, so that one-off allocations (such as class loading and
+   * caches) are not counted, and the JIT has had the chance to remove
+   * allocations that do not escape. Defaults to 1000.
+   */
+  public AllocationAssertionBuilder warmingUp(int iterations) {
+    if (iterations < 0) {
+      throw new IllegalArgumentException("Cannot warm up " + iterations
+          + " times");
+    }
+    warmUps = iterations;
+    return this;
+  }
+
+  /**
+   * Returns a wrapped allocation-asserting proxy for {@code target}. When the
+   * proxy receives a method call {@code invocation}, it makes the same call
+   * on {@code target} for each warm-up and each run, and asserts that the
+   * runs allocated no more than the budget per call, on average.
+   *
+   * Bytes are counted by the JVM for the calling thread, so allocations made
+   * by other threads on the call's behalf are not counted. What it costs
+   * Dupple to forward a call reflectively, and to read the count, is
+   * measured the same way on a call that does nothing, and subtracted. A
+   * primitive return value is still boxed, which allocates unless the value
+   * is cached.
+   *
+   * Example usage:
+   *
+   * <pre>
+   * assertAllocatesAtMost(0).from(parser).parseInt("12345");
+   * </pre>
+   */
+  public <T> T from(final T target) {
+    return new JmockDupplery().imposterize(target, new Invokable() {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        com.sun.management.ThreadMXBean threads = allocationCountingThreads();
+        long overhead =
+            allocatedBy(threads, NOTHING, new Nothing(), new Object[0]);
+        long allocated = allocatedBy(threads, invocation.getInvokedMethod(),
+            target, invocation.getParametersAsArray());
+        checkAllocation(target, invocation, Math.max(0, allocated - overhead));
+        return DefaultValueAction.INSTANCE.invoke(invocation);
+      }
+    });
+  }
+
+  private static com.sun.management.ThreadMXBean allocationCountingThreads() {
+    java.lang.management.ThreadMXBean threads =
+        ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean) threads)
+            .isThreadAllocatedMemorySupported()) {
+      throw new UnsupportedOperationException(
+          "This JVM cannot count the bytes allocated by a thread");
+    }
+    com.sun.management.ThreadMXBean counting =
+        (com.sun.management.ThreadMXBean) threads;
+    if (!counting.isThreadAllocatedMemoryEnabled()) {
+      counting.setThreadAllocatedMemoryEnabled(true);
+    }
+    return counting;
+  }
+
+  /**
+   * Returns the bytes this thread allocated calling {@code method} on
+   * {@code target} {@link #runs} times, after {@link #warmUps} unmeasured
+   * calls. Calls {@code method} directly rather than through
+   * {@link Invocation#applyTo}, which copies the arguments each time.
+   */
+  private long allocatedBy(com.sun.management.ThreadMXBean threads,
+      Method method, Object target, Object[] arguments) throws Throwable {
+    try {
+      for (int i = 0; i < warmUps; i++) {
+        method.invoke(target, arguments);
+      }
+      long id = Thread.currentThread().getId();
+      long before = threads.getThreadAllocatedBytes(id);
+      for (int i = 0; i < runs; i++) {
+        method.invoke(target, arguments);
+      }
+      return threads.getThreadAllocatedBytes(id) - before;
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+
+  private void checkAllocation(Object target, Invocation invocation,
+      long allocated) {
+    long perCall = allocated / runs;
+    if (perCall > budgetBytes) {
+      // described against the target, as the proxy's toString is measured
+      Invocation onTarget = new Invocation(target,
+          invocation.getInvokedMethod(), invocation.getParametersAsArray());
+      throw new AssertionFailedError("When calling "
+          + StringDescription.toString(onTarget) + ", Expected: at most "
+          + budgetBytes + " bytes per call but got " + perCall + " ("
+          + allocated + " bytes over " + runs
+          + (runs == 1 ? " call" : " calls") + ")");
+    }
+  }
+
+  /**
+   * The target of a call that does nothing, to measure overhead with.
+   */
+  private static class Nothing {
+    @SuppressWarnings("unused")
+    void call() {
+    }
+  }
+}
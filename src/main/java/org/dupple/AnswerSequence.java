@@ -0,0 +1,93 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.hamcrest.Description;
+import org.jmock.api.Action;
+import org.jmock.api.ExpectationError;
+import org.jmock.api.Invocation;
+
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Answers each call with the next value from an iterator, pulled only when the
+ * call is made, so a sequence may be endless. Calls from several threads each
+ * take a different value.
+ *
+ * @author Google
+ */
+class AnswerSequence implements Action {
+  private final Iterator<?> values;
+  private final WhenExhausted whenExhausted;
+  private final ReentrantLock lock = new ReentrantLock();
+  private boolean answered = false;
+  private Object last = null;
+
+  AnswerSequence(Iterator<?> values, WhenExhausted whenExhausted) {
+    this.values = values;
+    this.whenExhausted = whenExhausted;
+  }
+
+  /**
+   * Returns false if {@code action} is a sequence that has run out, and should
+   * no longer match calls.
+   */
+  static boolean canAnswer(Action action) {
+    return !(action instanceof AnswerSequence)
+        || ((AnswerSequence) action).canAnswer();
+  }
+
+  private boolean canAnswer() {
+    if (whenExhausted != WhenExhausted.FALL_THROUGH) {
+      return true;
+    }
+    lock.lock();
+    try {
+      return values.hasNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Object invoke(Invocation invocation) throws Throwable {
+    lock.lock();
+    try {
+      if (values.hasNext()) {
+        last = values.next();
+        answered = true;
+        return last;
+      }
+      if (whenExhausted == WhenExhausted.REPEAT_LAST && answered) {
+        return last;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (whenExhausted == WhenExhausted.REPEAT_LAST
+        || whenExhausted == WhenExhausted.RETURN_DEFAULT_VALUE) {
+      return DefaultValueAction.INSTANCE.invoke(invocation);
+    }
+    // FALL_THROUGH lands here only if another thread took the last value
+    // between matching and invoking.
+    throw new ExpectationError("answer sequence exhausted", invocation);
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    description.appendText("returns the next value of a sequence");
+  }
+}
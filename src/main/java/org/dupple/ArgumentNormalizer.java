@@ -0,0 +1,33 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+
+/**
+ * Rewrites arguments before calls are compared by
+ * {@link Dupple#diffCalls(Object, Object, ArgumentNormalizer)}, so that
+ * arguments expected to differ between runs, such as timestamps or generated
+ * ids, do not show up as changes.
+ *
+ * @author Google
+ */
+public interface ArgumentNormalizer {
+  /**
+   * Returns what argument {@code index} of a call to {@code method} should be
+   * compared as.
+   */
+  Object normalize(Method method, int index, Object argument);
+}
@@ -0,0 +1,252 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The differences between the calls recorded by two recorders, as found by
+ * {@link Dupple#diffCalls(Object, Object)}. For example, in a golden-master
+ * test:
+ *
+ * <pre>
+ * CallDiff diff = Dupple.diffCalls(knownGoodRecorder, recorder);
+ * assertTrue(diff.toString(), diff.isEmpty());
+ * </pre>
+ *
+ * Each call is reduced to a symbol standing for its method and (normalized)
+ * arguments, and the two sequences of symbols are compared with
+ * {@link MyersDiff}, so the cost grows with the length of the logs times the
+ * number of differences, rather than with the product of their lengths.
+ *
+ * @author Google
+ */
+public class CallDiff {
+  /**
+   * How a call differs between the expected and the actual log.
+   */
+  public enum Kind {
+    /** Made only in the actual log. */
+    INSERTED,
+
+    /** Made only in the expected log. */
+    REMOVED,
+
+    /** Made in both, to the same method, with different arguments. */
+    CHANGED
+  }
+
+  /**
+   * One difference between the two logs.
+   */
+  public static class Change {
+    private final Kind kind;
+    private final RecordedCall expected;
+    private final RecordedCall actual;
+
+    Change(Kind kind, RecordedCall expected, RecordedCall actual) {
+      this.kind = kind;
+      this.expected = expected;
+      this.actual = actual;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * Returns the call from the expected log, or null if it was inserted.
+     */
+    public RecordedCall getExpected() {
+      return expected;
+    }
+
+    /**
+     * Returns the call from the actual log, or null if it was removed.
+     */
+    public RecordedCall getActual() {
+      return actual;
+    }
+
+    @Override
+    public String toString() {
+      switch (kind) {
+        case INSERTED:
+          return "+ " + actual;
+        case REMOVED:
+          return "- " + expected;
+        default:
+          return "~ " + expected + " -> " + actual;
+      }
+    }
+  }
+
+  /**
+   * Compares arguments as they were recorded.
+   */
+  static final ArgumentNormalizer AS_RECORDED = new ArgumentNormalizer() {
+    @Override
+    public Object normalize(Method method, int index, Object argument) {
+      return argument;
+    }
+  };
+
+  private final List<Change> changes;
+
+  private CallDiff(List<Change> changes) {
+    this.changes = Collections.unmodifiableList(changes);
+  }
+
+  public List<Change> getChanges() {
+    return changes;
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return Join.join("\n", changes.toArray(new Object[0]));
+  }
+
+  /**
+   * Compares two sequences of calls, after passing every argument through
+   * {@code normalizer}.
+   */
+  static CallDiff between(List<RecordedCall> expected,
+      List<RecordedCall> actual, ArgumentNormalizer normalizer) {
+    Map<Signature, Integer> symbols = new HashMap<Signature, Integer>();
+    int[] a = symbolize(expected, normalizer, symbols);
+    int[] b = symbolize(actual, normalizer, symbols);
+
+    List<Change> changes = new ArrayList<Change>();
+    List<RecordedCall> removed = new ArrayList<RecordedCall>();
+    List<RecordedCall> inserted = new ArrayList<RecordedCall>();
+    int x = 0;
+    int y = 0;
+    for (MyersDiff.Step each : MyersDiff.diff(a, b)) {
+      switch (each) {
+        case DELETE:
+          removed.add(expected.get(x++));
+          break;
+        case INSERT:
+          inserted.add(actual.get(y++));
+          break;
+        default:
+          pairUp(removed, inserted, changes);
+          x++;
+          y++;
+      }
+    }
+    pairUp(removed, inserted, changes);
+    return new CallDiff(changes);
+  }
+
+  /**
+   * Reports a block of removed and inserted calls, pairing each removed call
+   * with the next inserted call to the same method as a change.
+   */
+  private static void pairUp(List<RecordedCall> removed,
+      List<RecordedCall> inserted, List<Change> changes) {
+    int next = 0;
+    for (RecordedCall each : removed) {
+      int match = next;
+      while (match < inserted.size()
+          && !inserted.get(match).getMethod().equals(each.getMethod())) {
+        match++;
+      }
+      if (match == inserted.size()) {
+        changes.add(new Change(Kind.REMOVED, each, null));
+        continue;
+      }
+      for (; next < match; next++) {
+        changes.add(new Change(Kind.INSERTED, null, inserted.get(next)));
+      }
+      changes.add(new Change(Kind.CHANGED, each, inserted.get(next++)));
+    }
+    for (; next < inserted.size(); next++) {
+      changes.add(new Change(Kind.INSERTED, null, inserted.get(next)));
+    }
+    removed.clear();
+    inserted.clear();
+  }
+
+  private static int[] symbolize(List<RecordedCall> calls,
+      ArgumentNormalizer normalizer, Map<Signature, Integer> symbols) {
+    int[] result = new int[calls.size()];
+    for (int i = 0; i < result.length; i++) {
+      Signature signature = new Signature(calls.get(i), normalizer);
+      Integer symbol = symbols.get(signature);
+      if (symbol == null) {
+        symbol = symbols.size();
+        symbols.put(signature, symbol);
+      }
+      result[i] = symbol;
+    }
+    return result;
+  }
+
+  /**
+   * What two calls must share to be the same: the method and normalized
+   * arguments. Doubles are compared by the type they stand in for, since
+   * calling equals or hashCode on a recorder would record the call.
+   */
+  private static class Signature {
+    private final Method method;
+    private final Object[] arguments;
+    private final int hash;
+
+    Signature(RecordedCall call, ArgumentNormalizer normalizer) {
+      method = call.getMethod();
+      arguments = call.getArguments();
+      for (int i = 0; i < arguments.length; i++) {
+        Object argument = normalizer.normalize(method, i, arguments[i]);
+        if (ExactInvocationExpectation.isDouble(argument)) {
+          argument = "<double for " + imposterizedClass(argument) + ">";
+        }
+        arguments[i] = argument;
+      }
+      hash = 31 * method.hashCode() + Arrays.deepHashCode(arguments);
+    }
+
+    private static Object imposterizedClass(Object argument) {
+      Class<?> imposterized =
+          ImposterizationRememberer.Util.imposterizedClass(argument);
+      return imposterized != null ? imposterized.getName() : "an unknown type";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Signature)) {
+        return false;
+      }
+      Signature other = (Signature) obj;
+      return hash == other.hash && method.equals(other.method)
+          && Arrays.deepEquals(arguments, other.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
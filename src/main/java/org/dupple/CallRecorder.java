@@ -0,0 +1,90 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * What a recorder does with each call made to it: write it to the log, then
+ * forward it to the recorded target. Shared by recorders built on jMock
+ * imposters and by {@link RecorderProxies}.
+ *
+ * @author Google
+ */
+class CallRecorder {
+  private final InvocationLog log;
+  private final Object target;
+  private final CallSampler sampler;
+  private final MethodFilter filter;
+  private final ConcurrencyMonitor monitor;
+  private Dupplery creator;
+
+  /**
+   * {@code sampler} and {@code filter} may each be null, to record every call,
+   * and {@code monitor} may be null, to not track concurrency.
+   */
+  CallRecorder(InvocationLog log, Object target, CallSampler sampler,
+      MethodFilter filter, ConcurrencyMonitor monitor) {
+    this.log = log;
+    this.target = target;
+    this.sampler = sampler;
+    this.filter = filter;
+    this.monitor = monitor;
+  }
+
+  /**
+   * Holds on to the Dupplery that made the recorder, which
+   * {@link DoubleRegistry} holds only weakly: the recorder keeps this, and so
+   * keeps its Dupplery alive for as long as it is itself reachable.
+   */
+  void setCreator(Dupplery creator) {
+    this.creator = creator;
+  }
+
+  ConcurrencyMonitor getMonitor() {
+    return monitor;
+  }
+
+  /**
+   * Records the call of {@code method} on {@code invokedObject} (the
+   * recorder), and returns the result of calling it on the target.
+   * {@code argumentSnapshot} is kept by the log. If tracking concurrency, the
+   * call on the target is tracked whether or not the call is recorded.
+   */
+  Object call(Object invokedObject, Method method, Object[] argumentSnapshot)
+      throws Throwable {
+    if (filter == null || filter.records(method)) {
+      log.record(invokedObject, method, argumentSnapshot, sampler);
+    }
+    if (monitor == null) {
+      return forward(method, argumentSnapshot);
+    }
+    monitor.enter(method);
+    try {
+      return forward(method, argumentSnapshot);
+    } finally {
+      monitor.exit(method);
+    }
+  }
+
+  private Object forward(Method method, Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (InvocationTargetException e) {
+      throw e.getTargetException();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+/**
+ * Decides which calls a sampling recorder keeps. Every call is still counted
+ * by the log; see {@link InvocationLog#callCounts()}.
+ *
+ * @author Google
+ */
+interface CallSampler {
+  /**
+   * Offers a call to the sampler. Returns true if the log should record it as
+   * usual, or false if the sampler dropped it or kept it itself.
+   */
+  boolean offer(MethodTable.Entry entry, Object invokedObject,
+      Object[] argumentSnapshot, long sequence);
+}
@@ -0,0 +1,50 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+/**
+ * A point in the calls recorded against a double, from
+ * {@link Dupple#checkpoint(Object)}. Assertions made since a checkpoint look
+ * only at calls recorded after it, so a test that verifies a long-lived
+ * recorder over and over pays only for the new calls each time. For example:
+ *
+ * <pre>
+ * for (Request each : requests) {
+ *   Checkpoint&lt;Handler&gt; before = Dupple.checkpoint(handler);
+ *   server.dispatch(each);
+ *   Dupple.assertCalledSince(before).handle(each);
+ *   Dupple.assertNoOtherCallsSince(before);
+ * }
+ * </pre>
+ *
+ * @author Google
+ */
+public class Checkpoint<T> {
+  private final T target;
+  private final long sequence;
+
+  Checkpoint(T target, long sequence) {
+    this.target = target;
+    this.sequence = sequence;
+  }
+
+  T getTarget() {
+    return target;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+}
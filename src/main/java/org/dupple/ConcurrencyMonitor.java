@@ -0,0 +1,127 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many calls are running at once in the target of one recorder,
+ * and which methods ran at the same time as each other.
+ *
+ * A call that finds no other call running costs two atomic increments, two
+ * decrements, and a read of the maximum so far. A call that finds others
+ * running also looks for which methods they are in, and counts one overlap
+ * for each: the later of two overlapping calls counts the pair, so each pair
+ * is counted once. Counts are read without stopping calls, so are only exact
+ * once calls have stopped.
+ *
+ * @author Google
+ */
+class ConcurrencyMonitor {
+  private final AtomicInteger running = new AtomicInteger();
+  private final AtomicInteger maxRunning = new AtomicInteger();
+  private final LongAdder overlappingCalls = new LongAdder();
+  private final ConcurrentMap<Method, AtomicInteger> runningByMethod =
+      new ConcurrentHashMap<Method, AtomicInteger>();
+  private final ConcurrentMap<Overlap.Key, LongAdder> overlaps =
+      new ConcurrentHashMap<Overlap.Key, LongAdder>();
+  private volatile Object recorder = null;
+
+  /**
+   * Notes that a call of {@code method} has started. Must be followed by
+   * {@link #exit(Method)}, once it has finished.
+   */
+  void enter(Method method) {
+    AtomicInteger sameMethod = runningFor(method);
+    // counted in its method before overall, so that any call seeing this
+    // one in the overall count also sees which method it is in
+    sameMethod.incrementAndGet();
+    int now = running.incrementAndGet();
+    if (now > 1) {
+      overlappingCalls.increment();
+      countOverlaps(method);
+    }
+    raiseMaxTo(now);
+  }
+
+  void exit(Method method) {
+    running.decrementAndGet();
+    runningByMethod.get(method).decrementAndGet();
+  }
+
+  private AtomicInteger runningFor(Method method) {
+    AtomicInteger count = runningByMethod.get(method);
+    if (count == null) {
+      runningByMethod.putIfAbsent(method, new AtomicInteger());
+      count = runningByMethod.get(method);
+    }
+    return count;
+  }
+
+  private void countOverlaps(Method method) {
+    for (Map.Entry<Method, AtomicInteger> each : runningByMethod.entrySet()) {
+      int others = each.getValue().get();
+      if (each.getKey().equals(method)) {
+        others--;
+      }
+      if (others > 0) {
+        overlapsOf(new Overlap.Key(method, each.getKey())).add(others);
+      }
+    }
+  }
+
+  private LongAdder overlapsOf(Overlap.Key key) {
+    LongAdder count = overlaps.get(key);
+    if (count == null) {
+      overlaps.putIfAbsent(key, new LongAdder());
+      count = overlaps.get(key);
+    }
+    return count;
+  }
+
+  private void raiseMaxTo(int now) {
+    int max = maxRunning.get();
+    while (now > max && !maxRunning.compareAndSet(max, now)) {
+      max = maxRunning.get();
+    }
+  }
+
+  /**
+   * Remembers that this monitors calls made to {@code recorder}.
+   */
+  void watch(Object recorder) {
+    this.recorder = recorder;
+  }
+
+  boolean watches(Object target) {
+    return recorder == target;
+  }
+
+  ConcurrencyReport report() {
+    List<Overlap> pairs = new ArrayList<Overlap>();
+    for (Map.Entry<Overlap.Key, LongAdder> each : overlaps.entrySet()) {
+      pairs.add(new Overlap(each.getKey(), each.getValue().sum()));
+    }
+    return new ConcurrencyReport(maxRunning.get(), overlappingCalls.sum(),
+        pairs);
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * How calls overlapped in the target of a recorder, from
+ * {@link Dupple#concurrencyOf(Object)}. Use it to catch a collaborator that
+ * is not thread-safe being called from several threads at once:
+ *
+ * <pre>
+ * Cache cache = Dupple.recording().trackingConcurrency().around(realCache);
+ * runLoadTest(cache);
+ * Dupple.assertNeverConcurrent(cache);
+ * </pre>
+ *
+ * @author Google
+ */
+public class ConcurrencyReport {
+  private static final Comparator<Overlap> MOST_FIRST =
+      new Comparator<Overlap>() {
+        @Override
+        public int compare(Overlap a, Overlap b) {
+          return Long.compare(b.getCount(), a.getCount());
+        }
+      };
+
+  private final int maxConcurrency;
+  private final long overlappingCalls;
+  private final List<Overlap> overlaps;
+
+  ConcurrencyReport(int maxConcurrency, long overlappingCalls,
+      List<Overlap> overlaps) {
+    this.maxConcurrency = maxConcurrency;
+    this.overlappingCalls = overlappingCalls;
+    Collections.sort(overlaps, MOST_FIRST);
+    this.overlaps = Collections.unmodifiableList(overlaps);
+  }
+
+  /**
+   * Returns the most calls that were running at once, or 0 if there were
+   * no calls.
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Returns how many calls started while another call was running.
+   */
+  public long getOverlappingCalls() {
+    return overlappingCalls;
+  }
+
+  /**
+   * Returns each pair of methods that ran at the same time, most frequent
+   * first.
+   */
+  public List<Overlap> getOverlaps() {
+    return overlaps;
+  }
+
+  void assertAtMost(int max) throws AssertionError {
+    if (maxConcurrency > max) {
+      throw new AssertionError("Up to " + maxConcurrency
+          + " calls ran at once, expected at most " + max + ": " + overlaps);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "at most " + maxConcurrency + " at once, " + overlappingCalls
+        + " overlapping calls: " + overlaps;
+  }
+}
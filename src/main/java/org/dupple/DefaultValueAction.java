@@ -0,0 +1,133 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import org.hamcrest.Description;
+import org.jmock.api.Action;
+import org.jmock.api.Imposteriser;
+import org.jmock.api.Invocation;
+import org.jmock.lib.JavaReflectionImposteriser;
+
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Returns a default value for the invoked method's return type, as jMock's
+ * ReturnDefaultValueAction does: false, zero, the empty string, an empty
+ * array, an {@code Object} of the action's own, or, for an interface, a
+ * fresh double on every call, whose calls also return default values.
+ * Anything else gets null.
+ *
+ * Unlike jMock's, the table of defaults is built once and shared between
+ * actions, and empty arrays are cached per type, so that using an action
+ * costs nothing beyond the value it returns. Each stub should have an action
+ * of its own (see {@link #withOwnObject()}), so that no two stubs return the
+ * same {@code Object}.
+ *
+ * @author Google
+ */
+class DefaultValueAction implements Action {
+  static final DefaultValueAction INSTANCE = new DefaultValueAction(
+      Collections.unmodifiableMap(defaultResults()), new Object());
+
+  private static final Imposteriser NESTED_IMPOSTERISER =
+      new JavaReflectionImposteriser();
+  private static final Class<?>[] NO_TYPES = new Class<?>[0];
+
+  private static final ClassValue<Object> EMPTY_ARRAYS =
+      new ClassValue<Object>() {
+        @Override
+        protected Object computeValue(Class<?> type) {
+          return Array.newInstance(type.getComponentType(), 0);
+        }
+      };
+
+  private final Map<Class<?>, Object> resultsByType;
+  private final Object objectResult;
+
+  private DefaultValueAction(Map<Class<?>, Object> resultsByType,
+      Object objectResult) {
+    this.resultsByType = resultsByType;
+    this.objectResult = objectResult;
+  }
+
+  private static Map<Class<?>, Object> defaultResults() {
+    Map<Class<?>, Object> results = new HashMap<Class<?>, Object>();
+    results.put(void.class, null);
+    results.put(boolean.class, Boolean.FALSE);
+    results.put(byte.class, Byte.valueOf((byte) 0));
+    results.put(short.class, Short.valueOf((short) 0));
+    results.put(int.class, Integer.valueOf(0));
+    results.put(long.class, Long.valueOf(0));
+    results.put(char.class, Character.valueOf('\0'));
+    results.put(float.class, Float.valueOf(0));
+    results.put(double.class, Double.valueOf(0));
+    results.put(Boolean.class, Boolean.FALSE);
+    results.put(Byte.class, Byte.valueOf((byte) 0));
+    results.put(Short.class, Short.valueOf((short) 0));
+    results.put(Integer.class, Integer.valueOf(0));
+    results.put(Long.class, Long.valueOf(0));
+    results.put(Character.class, Character.valueOf('\0'));
+    results.put(Float.class, Float.valueOf(0));
+    results.put(Double.class, Double.valueOf(0));
+    results.put(String.class, "");
+    return results;
+  }
+
+  /**
+   * Returns an action like this one, except that methods returning
+   * {@code type} return {@code result}.
+   */
+  DefaultValueAction withResult(Class<?> type, Object result) {
+    Map<Class<?>, Object> results =
+        new HashMap<Class<?>, Object>(resultsByType);
+    results.put(type, result);
+    return new DefaultValueAction(Collections.unmodifiableMap(results),
+        objectResult);
+  }
+
+  /**
+   * Returns an action like this one, except that methods returning
+   * {@code Object} return a new object of its own.
+   */
+  DefaultValueAction withOwnObject() {
+    return new DefaultValueAction(resultsByType, new Object());
+  }
+
+  @Override
+  public Object invoke(Invocation invocation) throws Throwable {
+    Class<?> type = invocation.getInvokedMethod().getReturnType();
+    Object result = resultsByType.get(type);
+    if (result != null || resultsByType.containsKey(type)) {
+      return result;
+    }
+    if (type == Object.class) {
+      return objectResult;
+    }
+    if (type.isArray()) {
+      return EMPTY_ARRAYS.get(type);
+    }
+    if (NESTED_IMPOSTERISER.canImposterise(type)) {
+      return NESTED_IMPOSTERISER.imposterise(this, type, NO_TYPES);
+    }
+    return null;
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    description.appendText("returns a default value");
+  }
+}
@@ -0,0 +1,172 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers, for each test double, the Dupplery that created it and the type
+ * it imposterizes, so that finding them is one identity-map read instead of a
+ * call through the double's proxy.
+ *
+ * Doubles are looked up by identity, never by their own {@code equals} or
+ * {@code hashCode}, and are held weakly. A Dupple double's Dupplery is held
+ * weakly too, as the recorded calls it keeps refer back to the double: each
+ * Dupple double keeps its own Dupplery alive instead. A Dupplery registered
+ * for another framework's double is held strongly, as nothing else is known
+ * to keep it alive.
+ *
+ * @author Google
+ */
+class DoubleRegistry {
+  static final DoubleRegistry INSTANCE = new DoubleRegistry();
+
+  /**
+   * What is known about one double.
+   */
+  static class Registration {
+    private final WeakReference<Dupplery> weakCreator;
+    private final Dupplery strongCreator;
+    private final Class<?> imposterizedClass;
+
+    Registration(Dupplery creator, Class<?> imposterizedClass,
+        boolean holdCreator) {
+      this.weakCreator = holdCreator ? null
+          : new WeakReference<Dupplery>(creator);
+      this.strongCreator = holdCreator ? creator : null;
+      this.imposterizedClass = imposterizedClass;
+    }
+
+    /**
+     * Returns the creator, or null if it has been garbage-collected.
+     */
+    Dupplery getCreator() {
+      return weakCreator == null ? strongCreator : weakCreator.get();
+    }
+
+    Class<?> getImposterizedClass() {
+      return imposterizedClass;
+    }
+  }
+
+  private final ConcurrentMap<IdentityKey, Registration> byDouble =
+      new ConcurrentHashMap<IdentityKey, Registration>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+  /**
+   * Registers a double that keeps {@code creator} alive itself.
+   */
+  void register(Object testDouble, Dupplery creator,
+      Class<?> imposterizedClass) {
+    register(testDouble, new Registration(creator, imposterizedClass, false));
+  }
+
+  /**
+   * Registers a double that may not keep {@code creator} alive, so that the
+   * registry must. If {@code creator} refers to {@code testDouble}, neither
+   * will be collected.
+   */
+  void registerForeign(Object testDouble, Dupplery creator,
+      Class<?> imposterizedClass) {
+    register(testDouble, new Registration(creator, imposterizedClass, true));
+  }
+
+  private void register(Object testDouble, Registration registration) {
+    expungeCollected();
+    byDouble.put(new WeakKey(testDouble, collected), registration);
+  }
+
+  /**
+   * Returns what is known about {@code testDouble}, or null if it was never
+   * registered.
+   */
+  Registration lookup(Object testDouble) {
+    if (testDouble == null) {
+      return null;
+    }
+    return byDouble.get(new LookupKey(testDouble));
+  }
+
+  private void expungeCollected() {
+    Reference<?> each;
+    while ((each = collected.poll()) != null) {
+      byDouble.remove(each);
+    }
+  }
+
+  private interface IdentityKey {
+    Object referent();
+  }
+
+  private static boolean sameReferent(IdentityKey key, Object other) {
+    if (!(other instanceof IdentityKey)) {
+      return false;
+    }
+    Object referent = key.referent();
+    return referent != null && referent == ((IdentityKey) other).referent();
+  }
+
+  private static class WeakKey extends WeakReference<Object> implements
+      IdentityKey {
+    private final int hash;
+
+    WeakKey(Object referent, ReferenceQueue<Object> queue) {
+      super(referent, queue);
+      hash = System.identityHashCode(referent);
+    }
+
+    @Override
+    public Object referent() {
+      return get();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return this == other || sameReferent(this, other);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static class LookupKey implements IdentityKey {
+    private final Object referent;
+
+    LookupKey(Object referent) {
+      this.referent = referent;
+    }
+
+    @Override
+    public Object referent() {
+      return referent;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return sameReferent(this, other);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(referent);
+    }
+  }
+}
@@ -20,11 +20,17 @@ import static org.hamcrest.CoreMatchers.is;
 import junit.framework.AssertionFailedError;
 import org.hamcrest.Matcher;
 import org.hamcrest.core.IsEqual;
-import org.jmock.internal.ReturnDefaultValueAction;
 import org.jmock.lib.action.ReturnValueAction;
 import org.jmock.lib.action.ThrowAction;
 
+import java.lang.reflect.Method;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Dupple is a wrapper for jMock that exposes a simple static interface for
@@ -99,7 +105,7 @@ public class Dupple {
    * supplied for each call.
    */
   public static <T> T recorder(Class<T> type) {
-    return new JmockDupplery().recordCalls(type);
+    return recording().of(type);
   }
 
   /**
@@ -108,7 +114,18 @@ public class Dupple {
    * target for return value and side effects.
    */
   public static <T> T recorder(T target) {
-    return ImposterizationRememberer.Util.creator(target).recordCalls(target);
+    return recording().around(target);
+  }
+
+  /**
+   * Returns a builder for a recorder with non-default options. For example:
+   * 
+   * <pre>
+   * Selenium sel = Dupple.recording().stripedByThread().of(Selenium.class);
+   * </pre>
+   */
+  public static RecorderBuilder recording() {
+    return new RecorderBuilder();
   }
 
   /**
@@ -121,6 +138,90 @@ public class Dupple {
     return ImposterizationRememberer.Util.creator(target).getInvocations();
   }
 
+  /**
+   * Returns a lazy stream of the calls recorded against {@code target} (and
+   * other recorders sharing its Dupplery), in the order they were made. Unlike
+   * {@link #callsTo}, the calls are typed views, and the stream can run in
+   * parallel. For example:
+   * 
+   * <pre>
+   * long retries = Dupple.calls(client)
+   *     .filter(call -&gt; call.getArguments()[0] == null).count();
+   * </pre>
+   */
+  public static Stream<RecordedCall> calls(Object target) {
+    return recordingCreator(target).getCalls(null);
+  }
+
+  /**
+   * Returns a lazy stream of the calls to {@code method} recorded against
+   * {@code target}, as {@link #calls(Object)}.
+   */
+  public static Stream<RecordedCall> calls(Object target, Method method) {
+    return recordingCreator(target).getCalls(method);
+  }
+
+  /**
+   * Returns the differences between the calls recorded against
+   * {@code expected} and those recorded against {@code actual}, such as a
+   * recorder from a known-good run and one from the run under test. See
+   * {@link CallDiff} for an example.
+   */
+  public static CallDiff diffCalls(Object expected, Object actual) {
+    return diffCalls(expected, actual, CallDiff.AS_RECORDED);
+  }
+
+  /**
+   * Returns the differences between the calls recorded against
+   * {@code expected} and {@code actual}, comparing arguments as rewritten by
+   * {@code normalizer}.
+   */
+  public static CallDiff diffCalls(Object expected, Object actual,
+      ArgumentNormalizer normalizer) {
+    return CallDiff.between(recordedCalls(expected), recordedCalls(actual),
+        normalizer);
+  }
+
+  private static List<RecordedCall> recordedCalls(Object target) {
+    return calls(target).collect(Collectors.<RecordedCall>toList());
+  }
+
+  /**
+   * Returns the number of calls made to each method of {@code target}, and of
+   * other recorders sharing its Dupplery. Counts are exact even for a recorder
+   * that keeps only a sample of its calls (see
+   * {@link RecorderBuilder#sampledOneIn(int)}).
+   */
+  public static Map<Method, Long> callCounts(Object target) {
+    return recordingCreator(target).getCallCounts();
+  }
+
+  /**
+   * Returns how many calls to {@code recorder} have run at once, and which
+   * methods overlapped. The recorder must have been created with
+   * {@link RecorderBuilder#trackingConcurrency()}.
+   */
+  public static ConcurrencyReport concurrencyOf(Object recorder) {
+    return recordingCreator(recorder).getConcurrency(recorder);
+  }
+
+  /**
+   * Asserts that no more than {@code max} calls to {@code recorder} have run
+   * at once. See {@link #concurrencyOf(Object)}.
+   */
+  public static void assertMaxConcurrency(Object recorder, int max) {
+    concurrencyOf(recorder).assertAtMost(max);
+  }
+
+  /**
+   * Asserts that no two calls to {@code recorder} have run at once, as is
+   * needed by a collaborator that is not thread-safe. See
+   * {@link #concurrencyOf(Object)}.
+   */
+  public static void assertNeverConcurrent(Object recorder) {
+    assertMaxConcurrency(recorder, 1);
+  }
+
   /**
    * Returns a builder that remembers {@code target}, and expects to receive a
    * message to continue the build. See class comment for an example. The method
@@ -142,6 +243,67 @@ public class Dupple {
         target);
   }
 
+  /**
+   * Returns a builder like {@link #assertCalled}, except that the assertion
+   * waits up to {@code timeout} for a matching call to be recorded, returning
+   * as soon as one is. For example:
+   * 
+   * <pre>
+   * pipeline.submit(job);
+   * Dupple.assertCalledWithin(sink, 5, TimeUnit.SECONDS).accept(result);
+   * </pre>
+   */
+  public static <T> T assertCalledWithin(T target, long timeout,
+      TimeUnit unit) {
+    return recordingCreator(target).assertCalledWithin(target, timeout, unit,
+        true);
+  }
+
+  /**
+   * Returns a builder like {@link #assertNotCalled}, except that the assertion
+   * also fails if a matching call is recorded during the next
+   * {@code timeout}, and so waits that long unless it fails first.
+   */
+  public static <T> T assertNotCalledWithin(T target, long timeout,
+      TimeUnit unit) {
+    return recordingCreator(target).assertCalledWithin(target, timeout, unit,
+        false);
+  }
+
+  /**
+   * Returns a builder that asserts calls were made in order: each quoted call
+   * must match a call recorded after the call matched by the quoted call
+   * before it. For example:
+   * 
+   * <pre>
+   * Connection inOrder = Dupple.assertInOrder(connection);
+   * inOrder.open();
+   * inOrder.send(request);
+   * inOrder.close();
+   * </pre>
+   * 
+   * Calls are ordered by their {@link RecordedCall#getSequence() sequence},
+   * so a call recorded before another was begun on the same or another
+   * thread is ordered before it. Unlike {@link #assertCalled}, this does not
+   * count the calls as verified for {@link #assertNoOtherCalls}.
+   */
+  public static <T> T assertInOrder(T target) {
+    return recordingCreator(target).assertInOrder(target, false);
+  }
+
+  /**
+   * Returns a builder like {@link #assertInOrder}, except that all the calls
+   * must also have been made by one thread, whichever it is. Calls made by
+   * other threads in between are ignored. Each thread's calls are kept in an
+   * index of their own, so this does not scan the calls of other threads.
+   * Calls kept by {@link RecorderBuilder#sampledPerMethod(int)} are not, so
+   * for a dupplery with such a recorder the builder throws
+   * {@link UnsupportedOperationException}.
+   */
+  public static <T> T assertInThreadOrder(T target) {
+    return recordingCreator(target).assertInOrder(target, true);
+  }
+
   /**
    * Asserts that all recorded calls to {@code target} have been matched by
    * previous calls to {@code assertCalled}.
@@ -150,6 +312,46 @@ public class Dupple {
     ImposterizationRememberer.Util.creator(target).assertNoOtherCalls(target);
   }
 
+  /**
+   * Returns a checkpoint in the calls recorded against {@code target}, for
+   * use with {@link #assertCalledSince} and {@link #assertNoOtherCallsSince}.
+   * See {@link Checkpoint} for an example.
+   */
+  public static <T> Checkpoint<T> checkpoint(T target) {
+    return new Checkpoint<T>(target, recordingCreator(target).checkpoint());
+  }
+
+  /**
+   * Returns a builder like {@link #assertCalled}, for the target of
+   * {@code checkpoint}, that only matches calls recorded since it.
+   */
+  public static <T> T assertCalledSince(Checkpoint<T> checkpoint) {
+    T target = checkpoint.getTarget();
+    return recordingCreator(target).assertCalledSince(
+        checkpoint.getSequence(), target, true);
+  }
+
+  /**
+   * Returns a builder like {@link #assertNotCalled}, for the target of
+   * {@code checkpoint}, that only matches calls recorded since it.
+   */
+  public static <T> T assertNotCalledSince(Checkpoint<T> checkpoint) {
+    T target = checkpoint.getTarget();
+    return recordingCreator(target).assertCalledSince(
+        checkpoint.getSequence(), target, false);
+  }
+
+  /**
+   * Asserts that all calls recorded against the target of {@code checkpoint}
+   * since it have been matched by calls to {@code assertCalled} or
+   * {@link #assertCalledSince}.
+   */
+  public static void assertNoOtherCallsSince(Checkpoint<?> checkpoint) {
+    Object target = checkpoint.getTarget();
+    recordingCreator(target).assertNoOtherCallsSince(
+        checkpoint.getSequence(), target);
+  }
+
   /**
    * Sets up a chain for asserting a call where one or more parameters should
    * not be checked by equality.
@@ -164,6 +366,25 @@ public class Dupple {
     return new AssertWhereCollector(standIn, matcher);
   }
 
+  private static RecordingDupplery recordingCreator(Object target) {
+    return ImposterizationRememberer.Util.recordingCreator(target);
+  }
+
+  /**
+   * Tells Dupple that {@code testDouble}, which may have been made by another
+   * framework, was created by {@code creator} and stands in for
+   * {@code imposterizedClass}. Afterwards, {@code testDouble} can be passed to
+   * {@link #assertCalled}, {@link #callsTo}, {@link #willReturn}, etc, which
+   * will delegate to {@code creator}. Dupple holds {@code creator} for as long
+   * as {@code testDouble} is reachable; if {@code creator} itself holds
+   * {@code testDouble}, neither will be garbage-collected.
+   */
+  public static void register(Object testDouble, Dupplery creator,
+      Class<?> imposterizedClass) {
+    DoubleRegistry.INSTANCE.registerForeign(testDouble, creator,
+        imposterizedClass);
+  }
+
   // STUBS
 
   /**
@@ -178,12 +399,22 @@ public class Dupple {
   /**
    * Returns a stub for {@code type}. This stub will return a default value for
    * every call. For object return types, the returned value will be a
-   * permissive stub for that type.
+   * permissive stub for that type. Each method returns the same such stub on
+   * every call; that includes collections and maps, whose stubs are as empty
+   * after a call to {@code add} or {@code put} as before.
    */
   public static <T> T permissiveStub(Class<T> type) {
     return new JmockDupplery().permissiveStub(type);
   }
 
+  /**
+   * Returns a stub for {@code type}, as {@link #permissiveStub(Class)}, except
+   * that every call returns a newly created default value.
+   */
+  public static <T> T permissiveStubWithFreshDefaults(Class<T> type) {
+    return new JmockDupplery().permissiveStub(type, false);
+  }
+
   /**
    * Returns a call builder to set an expectation for a call that will return
    * {@code value} See class comment for an example.
@@ -199,7 +430,8 @@ public class Dupple {
    * class comment for an example.
    */
   public static StubExpectationBuilder willReturnDefaultValue() {
-    return new StubExpectationBuilder(new ReturnDefaultValueAction());
+    return new StubExpectationBuilder(DefaultValueAction.INSTANCE
+        .withOwnObject());
   }
 
   /**
@@ -214,6 +446,92 @@ public class Dupple {
     return new StubExpectationBuilder(new ThrowAction(e));
   }
 
+  /**
+   * Returns a call builder to set an expectation for calls that will return
+   * successive values of {@code values}, each pulled only when a call is made.
+   * Once {@code values} has run out, calls fail. For example:
+   * 
+   * <pre>
+   * Dupple.willReturnEach(pages.iterator()).from(feed).nextPage();
+   * </pre>
+   */
+  public static StubExpectationBuilder willReturnEach(Iterator<?> values) {
+    return willReturnEach(values, WhenExhausted.FAIL);
+  }
+
+  /**
+   * Returns a call builder to set an expectation for calls that will return
+   * successive values of {@code values}, each pulled only when a call is made.
+   * Once {@code values} has run out, calls are handled as {@code whenExhausted}
+   * says.
+   */
+  public static StubExpectationBuilder willReturnEach(Iterator<?> values,
+      WhenExhausted whenExhausted) {
+    return new StubExpectationBuilder(new AnswerSequence(values,
+        whenExhausted));
+  }
+
+  /**
+   * Returns a call builder to set an expectation for calls that will each
+   * return a new value from {@code generator}. For example:
+   * 
+   * <pre>
+   * Dupple.willReturnGenerated(new RecordGenerator()).from(source).next();
+   * </pre>
+   */
+  public static StubExpectationBuilder willReturnGenerated(
+      final Supplier<?> generator) {
+    return willReturnEach(new Iterator<Object>() {
+      @Override
+      public boolean hasNext() {
+        return true;
+      }
+
+      @Override
+      public Object next() {
+        return generator.get();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  /**
+   * Returns a call builder to answer one method from a table of canned
+   * results, installed as a single expectation. A method of one parameter is
+   * looked up by its argument, any other method by the list of its arguments.
+   * For example:
+   * 
+   * <pre>
+   * Dupple.willReturnFrom(pricesBySku).from(catalog).priceOf(null);
+   * </pre>
+   * 
+   * The table is copied when the quoted call is made. A method returning a
+   * primitive cannot answer null, so the quoted call rejects such a row with
+   * an {@link IllegalArgumentException}.
+   */
+  public static TableStubBuilder willReturnFrom(Map<?, ?> answers) {
+    return new TableStubBuilder(answers);
+  }
+
+  /**
+   * Returns a call builder to answer one method from rows of canned results,
+   * read in a single pass when the quoted call is made. Each row holds the
+   * arguments of a call followed by its result. For example:
+   * 
+   * <pre>
+   * Dupple.willReturnFrom(rowsOf(fixtureFile)).from(rates).rate(null, null);
+   * </pre>
+   * 
+   * Rows are checked as for {@link #willReturnFrom(Map)}.
+   */
+  public static TableStubBuilder willReturnFrom(Iterable<Object[]> rows) {
+    return new TableStubBuilder(rows);
+  }
+
   // ONE-LINE BEHAVIOR ASSERTIONS
 
   /**
@@ -249,4 +567,86 @@ public class Dupple {
   public static ReturnedValueAssertionBuilder assertReturned(Matcher<?> m) {
     return new ReturnedValueAssertionBuilder(m);
   }
+
+  /**
+   * Returns a call builder that will assert that one method returns the
+   * expected value for every row of a table. Each row holds the arguments of
+   * a call followed by the value it should return, or a {@link Matcher} for
+   * it. The arguments of the quoted call are ignored: it only names the
+   * method. Rows are checked in parallel on a fork-join pool, and all the
+   * rows that fail are reported together. For example:
+   * 
+   * <pre>
+   * Dupple.assertReturnedFor(Arrays.asList(
+   *     new Object[] {"1", 1},
+   *     new Object[] {"-7", -7})).from(parser).parse(null);
+   * </pre>
+   */
+  public static TableAssertionBuilder assertReturnedFor(
+      Iterable<Object[]> rows) {
+    return new TableAssertionBuilder(rows);
+  }
+
+  /**
+   * Returns a call builder like {@link #assertReturnedFor(Iterable)}, for rows
+   * read from {@code rows} when the quoted call is made.
+   */
+  public static TableAssertionBuilder assertReturnedFor(
+      final Stream<Object[]> rows) {
+    return new TableAssertionBuilder(new Iterable<Object[]>() {
+      @Override
+      public Iterator<Object[]> iterator() {
+        return rows.iterator();
+      }
+    });
+  }
+
+  // ONE-LINE PERFORMANCE ASSERTIONS
+
+  /**
+   * Returns a call builder that will make the quoted call over and over, after
+   * a warm-up, and assert that it keeps up {@code expected}. On failure, the
+   * message gives the measured throughput and latency percentiles. For
+   * example:
+   * 
+   * <pre>
+   * Dupple.assertThroughput(Throughput.atLeast(50000, TimeUnit.SECONDS))
+   *     .onThreads(4).from(cache).get("key");
+   * </pre>
+   */
+  public static ThroughputAssertionBuilder assertThroughput(
+      Throughput expected) {
+    return new ThroughputAssertionBuilder(expected);
+  }
+
+  /**
+   * Returns a call builder that will time the quoted call and assert that it
+   * completes within {@code time}. By default the call is timed once; it can
+   * instead be timed over many runs, after untimed warm-ups, and held to a
+   * percentile. On failure, the message includes a histogram of the timings.
+   * For example:
+   * 
+   * <pre>
+   * Dupple.assertCompletesWithin(2, TimeUnit.MILLISECONDS).atPercentile(99)
+   *     .overRuns(1000).warmingUp(100).from(index).lookup("key");
+   * </pre>
+   */
+  public static LatencyAssertionBuilder assertCompletesWithin(long time,
+      TimeUnit unit) {
+    return new LatencyAssertionBuilder(unit.toNanos(time));
+  }
+
+  /**
+   * Returns a call builder that will make the quoted call repeatedly, after a
+   * warm-up, and assert that it allocates at most {@code bytes} per call on
+   * the calling thread. Dupple's own overhead in making the call is measured
+   * and subtracted. For example:
+   * 
+   * <pre>
+   * Dupple.assertAllocatesAtMost(0).from(encoder).encode(buffer, message);
+   * </pre>
+   */
+  public static AllocationAssertionBuilder assertAllocatesAtMost(long bytes) {
+    return new AllocationAssertionBuilder(bytes);
+  }
 }
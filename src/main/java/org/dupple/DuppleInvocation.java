@@ -18,31 +18,172 @@ package org.dupple;
 import org.jmock.api.Invocation;
 import org.jmock.internal.InvocationExpectation;
 
+import java.lang.reflect.Method;
+import java.util.Objects;
+
 /**
  * Stores an invocation that was observed against a recorder, and whether this
  * invocation has been verified yet.
  *
  * @author Google
  */
-class DuppleInvocation {
+class DuppleInvocation implements RecordedCall {
   private Invocation invocation;
+  private final long sequence;
+  private final long threadId;
+  private final String threadName;
+  private long threadSequence = -1;
+  private long lastSequence;
+  private long repeats = 1;
   private boolean verified = false;
 
   DuppleInvocation(Invocation invocation) {
+    this(invocation, -1, -1, null);
+  }
+
+  DuppleInvocation(Invocation invocation, long sequence, long threadId,
+      String threadName) {
     this.invocation = invocation;
+    this.sequence = sequence;
+    this.lastSequence = sequence;
+    this.threadId = threadId;
+    this.threadName = threadName;
   }
 
   @Override
   public String toString() {
     String methodName = invocation.getInvokedMethod().getName();
     Object[] parametersAsArray = invocation.getParametersAsArray();
-    return methodName + "(" + Join.join(", ", parametersAsArray) + ")";
+    String call = methodName + "(" + Join.join(", ", parametersAsArray) + ")";
+    if (repeats == 1) {
+      return call;
+    }
+    return call + " \u00d7" + repeats;
   }
 
   boolean invokedObjectIs(Object target) {
     return invocation.getInvokedObject() == target;
   }
 
+  @Override
+  public Object getInvokedObject() {
+    return invocation.getInvokedObject();
+  }
+
+  @Override
+  public Method getMethod() {
+    return invocation.getInvokedMethod();
+  }
+
+  @Override
+  public Object[] getArguments() {
+    return invocation.getParametersAsArray();
+  }
+
+  /**
+   * Returns the position of this invocation among all invocations recorded by
+   * its log, or -1 if it was never recorded. For a run of repeated calls,
+   * this is the position of the first.
+   */
+  @Override
+  public long getSequence() {
+    return sequence;
+  }
+
+  @Override
+  public long getThreadId() {
+    return threadId;
+  }
+
+  @Override
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * Returns the position of this invocation among the invocations its thread
+   * recorded to the same log, or -1 if it has not been merged into the log.
+   * For a run of repeated calls, this is the position of the first.
+   */
+  @Override
+  public long getThreadSequence() {
+    return threadSequence;
+  }
+
+  /**
+   * Returns the position in its thread of the last call in this run.
+   */
+  long getLastThreadSequence() {
+    return threadSequence + repeats - 1;
+  }
+
+  void setThreadSequence(long threadSequence) {
+    this.threadSequence = threadSequence;
+  }
+
+  /**
+   * Returns the position of the last call in this run.
+   */
+  long getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Returns how many identical calls, recorded one after another, this
+   * stands for.
+   */
+  long getRepeats() {
+    return repeats;
+  }
+
+  /**
+   * If {@code next} repeats this call exactly, and was recorded straight
+   * after it by the same thread, counts it as part of this run and returns
+   * true.
+   */
+  boolean absorb(DuppleInvocation next) {
+    if (verified || next.sequence != lastSequence + 1
+        || next.threadId != threadId || !sameCallAs(next)) {
+      return false;
+    }
+    repeats += next.repeats;
+    lastSequence = next.lastSequence;
+    return true;
+  }
+
+  /**
+   * Arguments are compared by equality, except that doubles are never
+   * compared, since calling equals on a recorder would record it.
+   */
+  private boolean sameCallAs(DuppleInvocation other) {
+    Invocation mine = invocation;
+    Invocation theirs = other.invocation;
+    if (mine.getInvokedObject() != theirs.getInvokedObject()
+        || !mine.getInvokedMethod().equals(theirs.getInvokedMethod())) {
+      return false;
+    }
+    for (int i = 0; i < mine.getParameterCount(); i++) {
+      Object argument = mine.getParameter(i);
+      if (ExactInvocationExpectation.isDouble(argument)
+          || !Objects.deepEquals(argument, theirs.getParameter(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns call {@code index} of this run, counting from 0, with its own
+   * positions: a run's calls were recorded one straight after another, so
+   * their sequences, and their positions in their thread, are consecutive.
+   */
+  DuppleInvocation single(long index) {
+    DuppleInvocation single = new DuppleInvocation(invocation,
+        sequence + index, threadId, threadName);
+    single.threadSequence = threadSequence < 0 ? -1 : threadSequence + index;
+    return single;
+  }
+
   void setVerified() {
     verified = true;
   }
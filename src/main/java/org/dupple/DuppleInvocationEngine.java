@@ -0,0 +1,136 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Dupple's own {@link InvocationEngine}. It behaves as
+ * {@link JmockInvocationEngine} does, but tells methods apart without
+ * allocating: jMock builds parameter-type arrays to recognize
+ * {@code equals}, {@code hashCode} and {@code toString} on every call,
+ * answers {@link ImposterizationRememberer} reflectively, and builds a table
+ * of defaults for every permissive stub.
+ *
+ * @author Google
+ */
+class DuppleInvocationEngine implements InvocationEngine {
+  static final DuppleInvocationEngine INSTANCE = new DuppleInvocationEngine();
+
+  private static final DefaultValueAction PERMISSIVE_DEFAULTS =
+      DefaultValueAction.INSTANCE.withResult(File.class, new File("noDefault"));
+
+  private DuppleInvocationEngine() {
+    // use INSTANCE
+  }
+
+  @Override
+  public Invokable withObjectIdentity(Invokable stub) {
+    return new ObjectIdentity(stub);
+  }
+
+  @Override
+  public Invokable withRememberer(Invokable next,
+      ImposterizationRememberer rememberer) {
+    return new RemembererDiverter(next, rememberer);
+  }
+
+  @Override
+  public Action permissiveDefaults() {
+    return PERMISSIVE_DEFAULTS.withOwnObject();
+  }
+
+  @Override
+  public String toString() {
+    return "dupple";
+  }
+
+  /**
+   * Answers {@code equals} and {@code hashCode} by identity, and
+   * {@code toString} with the stub's name. Only {@code equals} needs its
+   * parameter type checked, and only once its name and arity match.
+   */
+  private static class ObjectIdentity implements Invokable {
+    private final Invokable next;
+
+    ObjectIdentity(Invokable next) {
+      this.next = next;
+    }
+
+    @Override
+    public Object invoke(Invocation invocation) throws Throwable {
+      Method method = invocation.getInvokedMethod();
+      int parameterCount = method.getParameterCount();
+      if (parameterCount == 0) {
+        String name = method.getName();
+        Class<?> returnType = method.getReturnType();
+        if (returnType == int.class && name.equals("hashCode")) {
+          return System.identityHashCode(invocation.getInvokedObject());
+        }
+        if (returnType == String.class && name.equals("toString")) {
+          return next.toString();
+        }
+        if (returnType == void.class && name.equals("finalize")) {
+          return null;
+        }
+      } else if (parameterCount == 1 && method.getReturnType() == boolean.class
+          && method.getName().equals("equals")
+          && method.getParameterTypes()[0] == Object.class) {
+        return invocation.getInvokedObject() == invocation.getParameter(0);
+      }
+      return next.invoke(invocation);
+    }
+
+    @Override
+    public String toString() {
+      return next.toString();
+    }
+  }
+
+  /**
+   * Answers the two methods of {@link ImposterizationRememberer} directly,
+   * rather than reflectively.
+   */
+  private static class RemembererDiverter implements Invokable {
+    private final Invokable next;
+    private final ImposterizationRememberer rememberer;
+
+    RemembererDiverter(Invokable next, ImposterizationRememberer rememberer) {
+      this.next = next;
+      this.rememberer = rememberer;
+    }
+
+    @Override
+    public Object invoke(Invocation invocation) throws Throwable {
+      Method method = invocation.getInvokedMethod();
+      if (method.getDeclaringClass() != ImposterizationRememberer.class) {
+        return next.invoke(invocation);
+      }
+      if (method.getName().equals("getCreator")) {
+        return rememberer.getCreator();
+      }
+      return rememberer.getImposterizedClass();
+    }
+
+    @Override
+    public String toString() {
+      return next.toString();
+    }
+  }
+}
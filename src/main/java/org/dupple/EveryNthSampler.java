@@ -0,0 +1,50 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the first of every {@code n} calls to each method.
+ *
+ * @author Google
+ */
+class EveryNthSampler implements CallSampler {
+  private final int n;
+  private final ConcurrentMap<Method, AtomicLong> seen =
+      new ConcurrentHashMap<Method, AtomicLong>();
+
+  EveryNthSampler(int n) {
+    this.n = n;
+  }
+
+  @Override
+  public boolean offer(MethodTable.Entry entry, Object invokedObject,
+      Object[] argumentSnapshot, long sequence) {
+    return counterFor(entry.method).getAndIncrement() % n == 0;
+  }
+
+  private AtomicLong counterFor(Method method) {
+    AtomicLong counter = seen.get(method);
+    if (counter == null) {
+      seen.putIfAbsent(method, new AtomicLong());
+      counter = seen.get(method);
+    }
+    return counter;
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import net.sf.cglib.proxy.Factory;
+import org.hamcrest.Description;
+import org.jmock.api.Action;
+import org.jmock.api.Expectation;
+import org.jmock.api.Invocation;
+import org.jmock.internal.InvocationExpectation;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+/**
+ * An expectation for one method called with arguments equal to a given set,
+ * as built by {@code Dupple.willReturn(value).from(stub).method(args)}.
+ * Because it matches by equality, {@link ExpectedCalls} can find it by
+ * hashing the method and arguments of an incoming call, instead of testing it
+ * against every call in turn.
+ *
+ * Matching itself is left to the same jMock expectation that would be used
+ * without the index, so the two always agree. Only expectations whose
+ * arguments are immutable values are indexed: a mutable argument could
+ * change after the expectation is added, so that its hash no longer leads to
+ * it while jMock's own matching, which compares the argument as it is now,
+ * still would.
+ *
+ * @author Google
+ */
+class ExactInvocationExpectation implements Expectation {
+  /**
+   * A method and its arguments, compared by equality.
+   */
+  static class Key {
+    private final Method method;
+    private final Object[] arguments;
+    private final int hash;
+
+    Key(Method method, Object[] arguments) {
+      this.method = method;
+      this.arguments = arguments;
+      this.hash = 31 * method.hashCode() + Arrays.deepHashCode(arguments);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return hash == other.hash && method.equals(other.method)
+          && Arrays.deepEquals(arguments, other.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private final InvocationExpectation expectation;
+  private final Action action;
+  private final Key key;
+
+  ExactInvocationExpectation(Invocation invocation, Action action) {
+    this.action = action;
+    expectation =
+        InvocationMatchingRuleset.newExactMatch().expectMatchOf(invocation);
+    expectation.setAction(action);
+    key = keyOf(invocation);
+  }
+
+  /**
+   * Returns the key that {@code invocation} is indexed under, or null if its
+   * arguments cannot safely be hashed.
+   */
+  static Key keyOf(Invocation invocation) {
+    Object[] arguments = invocation.getParametersAsArray();
+    for (Object each : arguments) {
+      if (!isValue(each)) {
+        return null;
+      }
+    }
+    return new Key(invocation.getInvokedMethod(), arguments);
+  }
+
+  /**
+   * Returns whether {@code argument} is null or of a type whose equality and
+   * hash never change. An argument of any other type can only be equal to
+   * another one of its own type, so a call whose arguments are not all values
+   * can never match an indexed expectation.
+   */
+  static boolean isValue(Object argument) {
+    return argument == null
+        || argument instanceof String
+        || argument instanceof Boolean
+        || argument instanceof Character
+        || argument instanceof Byte
+        || argument instanceof Short
+        || argument instanceof Integer
+        || argument instanceof Long
+        || argument instanceof Float
+        || argument instanceof Double
+        || argument instanceof Enum
+        || argument instanceof Class;
+  }
+
+  /**
+   * Calling hashCode or equals on a double could be recorded, stubbed, or
+   * rejected, so doubles are never hashed.
+   */
+  static boolean isDouble(Object argument) {
+    return argument instanceof Factory
+        || argument instanceof ImposterizationRememberer
+        || argument instanceof PregeneratedProxy
+        || (argument != null && Proxy.isProxyClass(argument.getClass()));
+  }
+
+  /**
+   * Returns the index key, or null if this must be matched linearly.
+   */
+  Key getKey() {
+    return key;
+  }
+
+  @Override
+  public boolean allowsMoreInvocations() {
+    return expectation.allowsMoreInvocations()
+        && AnswerSequence.canAnswer(action);
+  }
+
+  @Override
+  public boolean isSatisfied() {
+    return expectation.isSatisfied();
+  }
+
+  @Override
+  public boolean matches(Invocation invocation) {
+    return expectation.matches(invocation) && AnswerSequence.canAnswer(action);
+  }
+
+  @Override
+  public Object invoke(Invocation invocation) throws Throwable {
+    return expectation.invoke(invocation);
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    expectation.describeTo(description);
+  }
+}
@@ -15,27 +15,83 @@
 package org.dupple;
 
 import org.jmock.api.Expectation;
+import org.jmock.api.ExpectationError;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
-import org.jmock.internal.InvocationDispatcher;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Keeps track of calls that are expected in a given context, and the actions
  * that should be performed in response.
  *
+ * Expectations are added rarely and read on every stubbed call, so they are
+ * kept in copy-on-write lists: dispatch takes no lock, and a call made while
+ * an expectation is being added sees a consistent list.
+ *
+ * Normal expectations that match one method with equal arguments (see
+ * {@link ExactInvocationExpectation}) are kept in a hash index instead, so
+ * that stubbing thousands of argument values does not make every call test
+ * thousands of expectations. Each normal expectation is ranked by the order
+ * in which it was added, and the earliest-added match still wins, indexed or
+ * not.
+ *
  * @author Google
  */
 class ExpectedCalls {
-  private List<Expectation> normalExpectations =
-      new ArrayList<Expectation>();
-  private List<Expectation> lowPriorityExpectations =
-      new ArrayList<Expectation>();
+  /**
+   * A normal expectation, and its position among all normal expectations.
+   */
+  private static class Ranked {
+    final int rank;
+    final Expectation expectation;
+
+    Ranked(int rank, Expectation expectation) {
+      this.rank = rank;
+      this.expectation = expectation;
+    }
+  }
+
+  private final ReentrantLock adding = new ReentrantLock();
+  private int added = 0;
+  private final List<Ranked> linearExpectations =
+      new CopyOnWriteArrayList<Ranked>();
+  private final ConcurrentMap<ExactInvocationExpectation.Key, List<Ranked>>
+      indexedExpectations =
+          new ConcurrentHashMap<ExactInvocationExpectation.Key,
+              List<Ranked>>();
+  private final List<Expectation> lowPriorityExpectations =
+      new CopyOnWriteArrayList<Expectation>();
 
   void addNormalExpectation(Expectation expectation) {
-    normalExpectations.add(expectation);
+    adding.lock();
+    try {
+      Ranked ranked = new Ranked(added++, expectation);
+      ExactInvocationExpectation.Key key = indexKey(expectation);
+      if (key == null) {
+        linearExpectations.add(ranked);
+        return;
+      }
+      List<Ranked> sameKey = indexedExpectations.get(key);
+      if (sameKey == null) {
+        sameKey = new CopyOnWriteArrayList<Ranked>();
+        indexedExpectations.put(key, sameKey);
+      }
+      sameKey.add(ranked);
+    } finally {
+      adding.unlock();
+    }
+  }
+
+  private ExactInvocationExpectation.Key indexKey(Expectation expectation) {
+    if (expectation instanceof ExactInvocationExpectation) {
+      return ((ExactInvocationExpectation) expectation).getKey();
+    }
+    return null;
   }
 
   void addLowPriorityExpectation(final Expectation expectation) {
@@ -46,10 +102,7 @@ class ExpectedCalls {
     return new Invokable() {
       @Override
       public Object invoke(Invocation invocation) throws Throwable {
-        InvocationDispatcher dispatcher = new InvocationDispatcher();
-        addAll(dispatcher, normalExpectations);
-        addAll(dispatcher, lowPriorityExpectations);
-        return dispatcher.dispatch(invocation);
+        return dispatch(invocation);
       }
 
       @Override
@@ -59,9 +112,50 @@ class ExpectedCalls {
     };
   }
 
-  private void addAll(InvocationDispatcher dispatcher, List<Expectation> exps) {
-    for (Expectation expectation : new ArrayList<Expectation>(exps)) {
-      dispatcher.add(expectation);
+  /**
+   * Invokes the first normal expectation matching {@code invocation}, or
+   * failing that the first matching low-priority expectation, just as jMock's
+   * InvocationDispatcher would with the two lists added in that order.
+   */
+  private Object dispatch(Invocation invocation) throws Throwable {
+    Ranked indexed = indexedMatch(invocation);
+    for (Ranked each : linearExpectations) {
+      if (indexed != null && each.rank > indexed.rank) {
+        break;
+      }
+      if (each.expectation.matches(invocation)) {
+        return each.expectation.invoke(invocation);
+      }
+    }
+    if (indexed != null) {
+      return indexed.expectation.invoke(invocation);
+    }
+    for (Expectation expectation : lowPriorityExpectations) {
+      if (expectation.matches(invocation)) {
+        return expectation.invoke(invocation);
+      }
+    }
+    throw new ExpectationError("unexpected invocation", invocation);
+  }
+
+  private Ranked indexedMatch(Invocation invocation) {
+    if (indexedExpectations.isEmpty()) {
+      return null;
+    }
+    ExactInvocationExpectation.Key key =
+        ExactInvocationExpectation.keyOf(invocation);
+    if (key == null) {
+      return null;
+    }
+    List<Ranked> sameKey = indexedExpectations.get(key);
+    if (sameKey == null) {
+      return null;
+    }
+    for (Ranked each : sameKey) {
+      if (each.expectation.matches(invocation)) {
+        return each;
+      }
     }
+    return null;
   }
 }
@@ -36,9 +36,67 @@ public interface ImposterizationRememberer {
       // prevent creation
     }
     
+    /**
+     * Returns the Dupplery that created {@code target}, looking first in the
+     * {@link DoubleRegistry}, and only then asking {@code target} itself.
+     */
     static Dupplery creator(Object target) {
+      Dupplery registered = registeredCreator(target);
+      if (registered != null) {
+        return registered;
+      }
       return ((ImposterizationRememberer) target).getCreator();
     }
+
+    /**
+     * Returns the Dupplery that created {@code target}, as
+     * {@link #creator(Object)}, if it supports {@link RecordingDupplery}.
+     *
+     * @throws UnsupportedOperationException if it was created by a Dupplery
+     *     that does not, such as another framework's
+     */
+    static RecordingDupplery recordingCreator(Object target) {
+      Dupplery creator = creator(target);
+      if (!(creator instanceof RecordingDupplery)) {
+        throw new UnsupportedOperationException("Only supported for doubles "
+            + "created by Dupple, not by " + creator.getClass().getName());
+      }
+      return (RecordingDupplery) creator;
+    }
+
+    /**
+     * Returns the Dupplery that created {@code target}, or null if it is not
+     * a double.
+     */
+    static Dupplery creatorOrNull(Object target) {
+      Dupplery registered = registeredCreator(target);
+      if (registered == null && target instanceof ImposterizationRememberer) {
+        return ((ImposterizationRememberer) target).getCreator();
+      }
+      return registered;
+    }
+
+    /**
+     * Returns the type {@code target} imposterizes, or null if it is not a
+     * double.
+     */
+    static Class<?> imposterizedClass(Object target) {
+      DoubleRegistry.Registration registration =
+          DoubleRegistry.INSTANCE.lookup(target);
+      if (registration != null) {
+        return registration.getImposterizedClass();
+      }
+      if (target instanceof ImposterizationRememberer) {
+        return ((ImposterizationRememberer) target).getImposterizedClass();
+      }
+      return null;
+    }
+
+    private static Dupplery registeredCreator(Object target) {
+      DoubleRegistry.Registration registration =
+          DoubleRegistry.INSTANCE.lookup(target);
+      return registration == null ? null : registration.getCreator();
+    }
   }
 
   /**
@@ -0,0 +1,36 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.util.List;
+
+/**
+ * Somewhere for a recorder to put invocations until the {@link InvocationLog}
+ * that owns it is next read. Adding must be safe from any number of threads at
+ * once, and should not allocate per call; draining is only ever done by one
+ * thread at a time.
+ *
+ * @author Google
+ */
+interface InvocationBuffer {
+  void add(Object invokedObject, int methodId, Object[] argumentSnapshot,
+      long sequence, Thread caller);
+
+  /**
+   * Moves every invocation added so far onto the end of {@code batch}, in no
+   * particular order.
+   */
+  void drainTo(List<DuppleInvocation> batch, MethodTable methods);
+}
@@ -0,0 +1,79 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.jmock.api.Invocation;
+
+import java.util.List;
+
+/**
+ * A block of recorded invocations, stored as parallel arrays so that
+ * recording a call writes into existing slots instead of allocating an object
+ * for it. {@link DuppleInvocation}s are only built when the slots are read.
+ *
+ * Publishing a written slot to readers is up to the owner of the chunk.
+ *
+ * @author Google
+ */
+class InvocationChunk {
+  private final Object[] invokedObjects;
+  private final int[] methodIds;
+  private final Object[][] arguments;
+  private final long[] sequences;
+  private final long[] threadIds;
+  private final String[] threadNames;
+
+  InvocationChunk(int size) {
+    invokedObjects = new Object[size];
+    methodIds = new int[size];
+    arguments = new Object[size][];
+    sequences = new long[size];
+    threadIds = new long[size];
+    threadNames = new String[size];
+  }
+
+  int size() {
+    return sequences.length;
+  }
+
+  /**
+   * Stores a call in slot {@code index}. Only the caller's id and name are
+   * kept, so that the threads of finished calls can be collected.
+   */
+  void set(int index, Object invokedObject, int methodId,
+      Object[] argumentSnapshot, long sequence, Thread caller) {
+    invokedObjects[index] = invokedObject;
+    methodIds[index] = methodId;
+    arguments[index] = argumentSnapshot;
+    sequences[index] = sequence;
+    threadIds[index] = caller.getId();
+    threadNames[index] = caller.getName();
+  }
+
+  /**
+   * Adds the invocation in slot {@code index} to {@code batch}, and forgets
+   * it.
+   */
+  void moveTo(List<DuppleInvocation> batch, int index, MethodTable methods) {
+    Invocation invocation =
+        new Invocation(invokedObjects[index], methods
+            .method(methodIds[index]), arguments[index]);
+    batch.add(new DuppleInvocation(invocation, sequences[index],
+        threadIds[index], threadNames[index]));
+    invokedObjects[index] = null;
+    arguments[index] = null;
+    threadNames[index] = null;
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import org.jmock.api.Action;
+import org.jmock.api.Invokable;
+
+/**
+ * The parts of a double that every call passes through before reaching its
+ * expectations: answering {@code equals}, {@code hashCode} and
+ * {@code toString}, answering {@link ImposterizationRememberer}, and choosing
+ * default values for permissive stubs.
+ *
+ * Only these parts are pluggable. Whichever engine is used, calls are still
+ * matched against expectations by jMock's classes, as jMock
+ * {@code Invocation}s.
+ *
+ * {@link DuppleInvocationEngine} is Dupple's own, and is used by default.
+ * {@link JmockInvocationEngine} adapts the jMock classes Dupple used for these
+ * parts before, so that the two can be compared; run with
+ * {@code -Ddupple.engine=jmock} to use it throughout.
+ *
+ * @author Google
+ */
+interface InvocationEngine {
+  /**
+   * Allows the expression
+   *
+   * <pre>
+   * InvocationEngine.Util.configured()
+   * </pre>
+   *
+   * @author Google
+   */
+  static class Util {
+    static final String PROPERTY = "dupple.engine";
+
+    private Util() {
+      // prevent creation
+    }
+
+    /**
+     * Returns the engine named by the {@code dupple.engine} system property:
+     * {@code jmock} for {@link JmockInvocationEngine}, and otherwise
+     * {@link DuppleInvocationEngine}.
+     */
+    static InvocationEngine configured() {
+      return named(System.getProperty(PROPERTY));
+    }
+
+    static InvocationEngine named(String name) {
+      if ("jmock".equals(name)) {
+        return JmockInvocationEngine.INSTANCE;
+      }
+      if (name == null || name.isEmpty() || "dupple".equals(name)) {
+        return DuppleInvocationEngine.INSTANCE;
+      }
+      throw new IllegalArgumentException("Unknown " + PROPERTY + ": " + name
+          + " (expected dupple or jmock)");
+    }
+  }
+
+  /**
+   * Returns an invokable that answers {@code equals} and {@code hashCode} by
+   * the identity of the invoked double, {@code toString} with
+   * {@code stub.toString()}, and passes every other call to {@code stub}.
+   */
+  Invokable withObjectIdentity(Invokable stub);
+
+  /**
+   * Returns an invokable that answers calls to
+   * {@link ImposterizationRememberer} methods from {@code rememberer}, and
+   * passes every other call to {@code next}.
+   */
+  Invokable withRememberer(Invokable next,
+      ImposterizationRememberer rememberer);
+
+  /**
+   * Returns the action that answers calls to a permissive stub that no other
+   * expectation matched.
+   */
+  Action permissiveDefaults();
+}
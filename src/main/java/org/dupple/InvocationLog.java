@@ -16,42 +16,622 @@ package org.dupple;
 
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
+import org.jmock.internal.InvocationExpectation;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 /**
  * Remembers a record of invocations against one or more objects
  *
+ * Recording never enters a monitor: each call is appended to a lock-free
+ * buffer. Whoever reads the log takes {@link #lock} (which parks rather than
+ * pins a virtual thread), and merges the buffers into {@link #recorded} in
+ * sequence order. Recording takes the lock only while a thread is waiting in
+ * {@link #awaitMatch}, to wake it.
+ *
+ * In steady state, recording a call allocates nothing but the snapshot of its
+ * arguments: the method is resolved to a cached id, and the buffers store calls
+ * in preallocated arrays rather than as objects.
+ *
+ * Each call is tagged with its thread. Merging also files it in a per-thread
+ * index, {@link #byThread}, numbering it among its thread's calls, so that
+ * {@link #invokeToCheckOrder} can check order within a thread without
+ * scanning other threads' calls. It is filed by method too, in
+ * {@link #byMethod}, so that {@link #calls(Method)} reads only the calls to
+ * that method.
+ *
  * @author Google
  */
-class InvocationLog extends ArrayList<DuppleInvocation> {
-  <T> Invokable recordingInvokable(final T target) {
+class InvocationLog {
+  private static final Comparator<DuppleInvocation> BY_SEQUENCE =
+      new Comparator<DuppleInvocation>() {
+        @Override
+        public int compare(DuppleInvocation a, DuppleInvocation b) {
+          long x = a.getSequence();
+          long y = b.getSequence();
+          return x < y ? -1 : (x == y ? 0 : 1);
+        }
+      };
+
+  private static final Function<RecordedCall, Stream<RecordedCall>>
+      EACH_CALL_OF_RUN = new Function<RecordedCall, Stream<RecordedCall>>() {
+        @Override
+        public Stream<RecordedCall> apply(RecordedCall call) {
+          final DuppleInvocation run = (DuppleInvocation) call;
+          if (run.getRepeats() == 1) {
+            return Stream.<RecordedCall>of(run);
+          }
+          return LongStream.range(0, run.getRepeats()).mapToObj(
+              new LongFunction<RecordedCall>() {
+                @Override
+                public RecordedCall apply(long index) {
+                  return run.single(index);
+                }
+              });
+        }
+      };
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final MethodTable methods = new MethodTable();
+  private final InvocationBuffer shared = new SharedInvocationBuffer();
+  private volatile InvocationBuffer stripes = null;
+
+  private static final int COLLAPSE_EVERY = 4096;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  private final List<Waiter> waiters = new ArrayList<Waiter>();
+  private volatile int waiting = 0;
+  private final ArrayList<DuppleInvocation> recorded =
+      new ArrayList<DuppleInvocation>();
+  private final Map<Long, ThreadCalls> byThread =
+      new LinkedHashMap<Long, ThreadCalls>();
+  private final Map<Method, ArrayList<DuppleInvocation>> byMethod =
+      new HashMap<Method, ArrayList<DuppleInvocation>>();
+  private volatile boolean collapsingRepeats = false;
+  private boolean evictingVerified = false;
+  private int verifiedSinceCompaction = 0;
+  private long evicted = 0;
+  private final List<ReservoirSampler> reservoirs =
+      new CopyOnWriteArrayList<ReservoirSampler>();
+  // bumped whenever recorded changes, to tell when sampledView is stale
+  private long changes = 0;
+  private List<DuppleInvocation> sampledView = null;
+  private long sampledViewChanges = -1;
+  private long sampledViewSamples = -1;
+  // searched by identity, as calling equals on a recorder would record it
+  private final List<ConcurrencyMonitor> monitors =
+      new CopyOnWriteArrayList<ConcurrencyMonitor>();
+
+  /**
+   * From now on, each thread records into its own buffer, and the buffers are
+   * only merged into this log when it is read.
+   */
+  void stripeByThread() {
+    lock.lock();
+    try {
+      if (stripes == null) {
+        stripes = new StripedInvocationBuffer();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * From now on, a call that repeats the previous one exactly (same object,
+   * method and equal arguments, with nothing recorded in between) extends
+   * its run instead of being stored again. Verifying a run verifies every
+   * call in it. Runs are merged from the buffers every
+   * {@link #COLLAPSE_EVERY} calls, so that a long run takes constant memory
+   * even if the log is never read.
+   */
+  void collapseRepeats() {
+    collapsingRepeats = true;
+  }
+
+  /**
+   * From now on, calls are dropped from this log once an assertion has
+   * verified them, so that the log holds only the unverified backlog. Only
+   * their number is kept (see {@link #toString()}), and the per-method counts
+   * of {@link #callCounts()} are unaffected. A verified call can then be
+   * neither verified again nor seen by {@code assertNotCalled}.
+   *
+   * A call counts as evicted as soon as it is verified (see
+   * {@link #isEvicted}), whatever the size of the log: every read skips it.
+   * Actually removing it waits for compaction, which only frees memory.
+   */
+  void evictVerified() {
+    lock.lock();
+    try {
+      evictingVerified = true;
+      for (DuppleInvocation each : recorded) {
+        if (each.isVerified()) {
+          verifiedSinceCompaction++;
+        }
+      }
+      compactIfWorthwhile();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  Invokable recordingInvokable(final CallRecorder recorder) {
     return new Invokable() {
       @Override
       public Object invoke(Invocation invocation) throws Throwable {
-        Method invokedMethod = invocation.getInvokedMethod();
-        if (!isIgnoredMethod(invokedMethod)) {
-          add(new DuppleInvocation(invocation));
-        }
-        return invocation.applyTo(target);
+        return recorder.call(invocation.getInvokedObject(), invocation
+            .getInvokedMethod(), invocation.getParametersAsArray());
       }
     };
   }
 
-  private boolean isIgnoredMethod(Method invokedMethod) {
-    return invokedMethod.getDeclaringClass().equals(
-        ImposterizationRememberer.class);
+  CallRecorder recorderFor(Object target) {
+    return recorderFor(target, null, null, false);
+  }
+
+  /**
+   * Returns a recorder for {@code target} that records only calls to methods
+   * passed by {@code filter}, and of those keeps only the calls chosen by
+   * {@code sampler}. Either may be null, to let every call through. If
+   * {@code trackingConcurrency}, the recorder also counts overlapping calls;
+   * pass the recorder made with it to {@link #watchConcurrency}.
+   */
+  CallRecorder recorderFor(Object target, CallSampler sampler,
+      MethodFilter filter, boolean trackingConcurrency) {
+    return new CallRecorder(this, target, sampler, filter,
+        trackingConcurrency ? new ConcurrencyMonitor() : null);
+  }
+
+  /**
+   * Makes the concurrency tracked by {@code callRecorder}, if any, available
+   * from {@link #concurrencyOf} for {@code recorder}.
+   */
+  void watchConcurrency(Object recorder, CallRecorder callRecorder) {
+    ConcurrencyMonitor monitor = callRecorder.getMonitor();
+    if (monitor != null) {
+      monitor.watch(recorder);
+      monitors.add(monitor);
+    }
+  }
+
+  /**
+   * Returns how calls to {@code recorder} have overlapped so far.
+   */
+  ConcurrencyReport concurrencyOf(Object recorder) {
+    for (ConcurrencyMonitor each : monitors) {
+      if (each.watches(recorder)) {
+        return each.report();
+      }
+    }
+    throw new IllegalArgumentException("Not tracking concurrency of "
+        + "this recorder: create it with "
+        + "Dupple.recording().trackingConcurrency()");
+  }
+
+  /**
+   * Returns a sampler keeping {@code size} calls to each method, whose sample
+   * is read along with the rest of this log.
+   */
+  ReservoirSampler newReservoir(int size) {
+    ReservoirSampler reservoir = new ReservoirSampler(size);
+    reservoirs.add(reservoir);
+    return reservoir;
+  }
+
+  /**
+   * Records a call, unless it is to a method that is never recorded.
+   * {@code argumentSnapshot} is kept, so must not be changed afterwards.
+   */
+  void record(Object invokedObject, Method method, Object[] argumentSnapshot) {
+    record(invokedObject, method, argumentSnapshot, null);
+  }
+
+  /**
+   * Counts a call, and records it if {@code sampler} (which may be null)
+   * accepts it.
+   */
+  void record(Object invokedObject, Method method, Object[] argumentSnapshot,
+      CallSampler sampler) {
+    MethodTable.Entry entry = methods.entryFor(method);
+    if (entry.ignored) {
+      return;
+    }
+    entry.calls.increment();
+    long number = sequence.getAndIncrement();
+    if (sampler != null
+        && !sampler.offer(entry, invokedObject, argumentSnapshot, number)) {
+      if (waiting > 0) {
+        // a reservoir may have kept it even so
+        signalWaiters();
+      }
+      return;
+    }
+    InvocationBuffer buffer = stripes;
+    if (buffer == null) {
+      buffer = shared;
+    }
+    buffer.add(invokedObject, entry.id, argumentSnapshot, number,
+        Thread.currentThread());
+    if (waiting > 0) {
+      signalWaiters();
+    }
+    if (collapsingRepeats && number % COLLAPSE_EVERY == 0 && lock.tryLock()) {
+      try {
+        mergedBuffers();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void signalWaiters() {
+    lock.lock();
+    try {
+      appended.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the exact number of calls made to each method, including calls
+   * that a sampling recorder did not keep.
+   */
+  Map<Method, Long> callCounts() {
+    Map<Method, Long> counts = new HashMap<Method, Long>();
+    for (MethodTable.Entry each : methods.entries()) {
+      if (!each.ignored) {
+        counts.put(each.method, each.calls.sum());
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Returns a copy of every invocation recorded so far, in the order recorded.
+   */
+  List<DuppleInvocation> snapshot() {
+    lock.lock();
+    try {
+      List<DuppleInvocation> merged = merged();
+      List<DuppleInvocation> calls =
+          new ArrayList<DuppleInvocation>(merged.size());
+      for (DuppleInvocation each : merged) {
+        if (isEvicted(each)) {
+          continue;
+        }
+        if (each.getRepeats() == 1) {
+          calls.add(each);
+        } else {
+          for (long i = 0; i < each.getRepeats(); i++) {
+            calls.add(each.single(i));
+          }
+        }
+      }
+      return calls;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a lazy stream of the calls recorded so far, in the order recorded,
+   * or of just the calls to {@code method} if it is not null. The stream
+   * works from an array of references to the log's entries taken now, so it
+   * may run in parallel, and is not affected by calls recorded afterwards.
+   * The calls to one method are read from {@link #byMethod}, without looking
+   * at calls to any other.
+   */
+  Stream<RecordedCall> calls(Method method) {
+    RecordedCall[] calls;
+    lock.lock();
+    try {
+      if (method == null) {
+        List<DuppleInvocation> merged = present(merged());
+        calls = merged.toArray(new RecordedCall[merged.size()]);
+      } else {
+        mergedBuffers();
+        List<DuppleInvocation> toMethod = byMethod.get(method);
+        if (toMethod == null) {
+          toMethod = Collections.emptyList();
+        }
+        if (!reservoirs.isEmpty()) {
+          List<DuppleInvocation> sampled = new ArrayList<DuppleInvocation>();
+          for (ReservoirSampler each : reservoirs) {
+            each.addTo(sampled, method);
+          }
+          toMethod = mergeInOrder(toMethod, sampled);
+        }
+        toMethod = present(toMethod);
+        calls = toMethod.toArray(new RecordedCall[toMethod.size()]);
+      }
+    } finally {
+      lock.unlock();
+    }
+    Stream<RecordedCall> stream = Arrays.stream(calls);
+    if (collapsingRepeats) {
+      stream = stream.flatMap(EACH_CALL_OF_RUN);
+    }
+    return stream;
+  }
+
+  /**
+   * Returns whether {@code invocation} counts as gone from this log: once the
+   * log evicts, a verified call does, whether or not compaction has removed
+   * it yet. Callers must hold {@link #lock}.
+   */
+  private boolean isEvicted(DuppleInvocation invocation) {
+    return evictingVerified && invocation.isVerified();
+  }
+
+  /**
+   * Returns {@code calls}, or if this log evicts, a copy without the calls
+   * that count as evicted. Callers must hold {@link #lock}.
+   */
+  private List<DuppleInvocation> present(List<DuppleInvocation> calls) {
+    if (!evictingVerified) {
+      return calls;
+    }
+    List<DuppleInvocation> present =
+        new ArrayList<DuppleInvocation>(calls.size());
+    for (DuppleInvocation each : calls) {
+      if (!each.isVerified()) {
+        present.add(each);
+      }
+    }
+    return present;
+  }
+
+  /**
+   * Returns the log itself, after merging in anything still buffered, or a
+   * copy of it with the current samples of any reservoirs merged in. Callers
+   * must hold {@link #lock}, and must not change the list.
+   *
+   * The copy is kept, and returned again until either the log or a sample
+   * changes. Only the samples, of which there are few, are sorted; they are
+   * then merged with the log, which is already in order.
+   */
+  private List<DuppleInvocation> merged() {
+    List<DuppleInvocation> merged = mergedBuffers();
+    if (reservoirs.isEmpty()) {
+      return merged;
+    }
+    // read before the samples, so that a change while reading them is seen
+    // as a change next time
+    long samples = 0;
+    for (ReservoirSampler each : reservoirs) {
+      samples += each.changes();
+    }
+    if (sampledView != null && sampledViewChanges == changes
+        && sampledViewSamples == samples) {
+      return sampledView;
+    }
+    List<DuppleInvocation> sampled = new ArrayList<DuppleInvocation>();
+    for (ReservoirSampler each : reservoirs) {
+      each.addTo(sampled);
+    }
+    sampledView = mergeInOrder(merged, sampled);
+    sampledViewChanges = changes;
+    sampledViewSamples = samples;
+    return sampledView;
+  }
+
+  /**
+   * Returns {@code log}, which is in sequence order, merged with
+   * {@code samples}, which need not be.
+   */
+  private static List<DuppleInvocation> mergeInOrder(
+      List<DuppleInvocation> log, List<DuppleInvocation> samples) {
+    Collections.sort(samples, BY_SEQUENCE);
+    List<DuppleInvocation> merged =
+        new ArrayList<DuppleInvocation>(log.size() + samples.size());
+    int i = 0;
+    int j = 0;
+    while (i < log.size() && j < samples.size()) {
+      if (BY_SEQUENCE.compare(log.get(i), samples.get(j)) <= 0) {
+        merged.add(log.get(i++));
+      } else {
+        merged.add(samples.get(j++));
+      }
+    }
+    merged.addAll(log.subList(i, log.size()));
+    merged.addAll(samples.subList(j, samples.size()));
+    return merged;
+  }
+
+  private List<DuppleInvocation> mergedBuffers() {
+    List<DuppleInvocation> batch = new ArrayList<DuppleInvocation>();
+    shared.drainTo(batch, methods);
+    InvocationBuffer striped = stripes;
+    if (striped != null) {
+      striped.drainTo(batch, methods);
+    }
+    if (!batch.isEmpty()) {
+      Collections.sort(batch, BY_SEQUENCE);
+      mergeSorted(batch);
+      changes++;
+      for (Waiter each : waiters) {
+        each.check(batch);
+      }
+    }
+    return recorded;
+  }
+
+  /**
+   * Merges {@code batch} into the log. A call collapsed into a run is
+   * replaced in {@code batch} by the run, so that waiters match what the log
+   * actually holds.
+   */
+  private void mergeSorted(List<DuppleInvocation> batch) {
+    if (recorded.isEmpty()
+        || BY_SEQUENCE.compare(recorded.get(recorded.size() - 1),
+            batch.get(0)) < 0) {
+      if (!collapsingRepeats) {
+        recorded.addAll(batch);
+        for (DuppleInvocation each : batch) {
+          threadCallsOf(each).add(each);
+          methodCallsOf(each).add(each);
+        }
+        return;
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        DuppleInvocation each = batch.get(i);
+        DuppleInvocation last =
+            recorded.isEmpty() ? null : recorded.get(recorded.size() - 1);
+        if (last != null && last.absorb(each)) {
+          threadCallsOf(each).count++;
+          batch.set(i, last);
+        } else {
+          recorded.add(each);
+          threadCallsOf(each).add(each);
+          methodCallsOf(each).add(each);
+        }
+      }
+      return;
+    }
+    // A thread was still publishing when we last merged: slot its calls in
+    // where they belong. Each thread's calls are drained in the order it made
+    // them, so they still go at the end of its own index.
+    for (DuppleInvocation each : batch) {
+      insertSorted(recorded, each);
+      threadCallsOf(each).add(each);
+      insertSorted(methodCallsOf(each), each);
+    }
+  }
+
+  private static void insertSorted(List<DuppleInvocation> calls,
+      DuppleInvocation invocation) {
+    int index = Collections.binarySearch(calls, invocation, BY_SEQUENCE);
+    calls.add(index < 0 ? -index - 1 : index, invocation);
+  }
+
+  private List<DuppleInvocation> methodCallsOf(DuppleInvocation invocation) {
+    ArrayList<DuppleInvocation> calls = byMethod.get(invocation.getMethod());
+    if (calls == null) {
+      calls = new ArrayList<DuppleInvocation>();
+      byMethod.put(invocation.getMethod(), calls);
+    }
+    return calls;
+  }
+
+  private ThreadCalls threadCallsOf(DuppleInvocation invocation) {
+    ThreadCalls calls = byThread.get(invocation.getThreadId());
+    if (calls == null) {
+      calls = new ThreadCalls(invocation.getThreadName());
+      byThread.put(invocation.getThreadId(), calls);
+    }
+    return calls;
+  }
+
+  /**
+   * The calls one thread has recorded to this log, in the order it made them.
+   */
+  private static class ThreadCalls {
+    final String name;
+    final ArrayList<DuppleInvocation> calls = new ArrayList<DuppleInvocation>();
+    long count = 0;
+
+    ThreadCalls(String name) {
+      this.name = name;
+    }
+
+    void add(DuppleInvocation invocation) {
+      invocation.setThreadSequence(count);
+      count += invocation.getRepeats();
+      calls.add(invocation);
+    }
+
+    /**
+     * Returns the first call in a run including or after {@code position},
+     * by binary search, as an index into {@link #calls}.
+     */
+    int indexOf(long position) {
+      int low = 0;
+      int high = calls.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (calls.get(middle).getLastThreadSequence() < position) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Returns a checkpoint: calls recorded after this returns are "since" it.
+   * Checking calls since a checkpoint costs time in proportion to the calls
+   * recorded since, not to the whole log.
+   *
+   * Taking a checkpoint uses up a sequence number that no call will have.
+   * A run only absorbs a call numbered straight after it, so no run spans a
+   * checkpoint, and a call made before it is never matched or verified as
+   * part of a run since.
+   */
+  long checkpoint() {
+    return sequence.incrementAndGet();
+  }
+
+  /**
+   * Returns the calls in {@code log}, which is in sequence order, recorded
+   * since {@code checkpoint}.
+   */
+  private static List<DuppleInvocation> since(List<DuppleInvocation> log,
+      long checkpoint) {
+    int low = 0;
+    int high = log.size();
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (log.get(middle).getLastSequence() < checkpoint) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return log.subList(low, log.size());
   }
 
   void assertNoUnverifiedInvocations(Object target) throws AssertionError {
+    assertNoUnverifiedInvocations(target, 0);
+  }
+
+  /**
+   * As {@link #assertNoUnverifiedInvocations(Object)}, for calls recorded
+   * since {@code checkpoint}.
+   */
+  void assertNoUnverifiedInvocations(Object target, long checkpoint)
+      throws AssertionError {
     List<DuppleInvocation> unverified = new ArrayList<DuppleInvocation>();
 
-    for (DuppleInvocation each : this) {
-      if (each.invokedObjectIs(target) && !each.isVerified()) {
-        unverified.add(each);
+    lock.lock();
+    try {
+      for (DuppleInvocation each : since(merged(), checkpoint)) {
+        if (each.invokedObjectIs(target) && !each.isVerified()) {
+          unverified.add(each);
+        }
       }
+    } finally {
+      lock.unlock();
     }
 
     if (!unverified.isEmpty()) {
@@ -60,24 +640,188 @@ class InvocationLog extends ArrayList<DuppleInvocation> {
   }
 
   boolean matchesAny(Invocation assertedInvocation,
-      InvocationMatchingRuleset ruleset) {
-    for (DuppleInvocation recordedInvocation : this) {
-      if (recordedInvocation.matchedBy(ruleset
-          .expectMatchOf(assertedInvocation))) {
-        recordedInvocation.setVerified();
-        return true;
+      InvocationMatchingRuleset ruleset, long checkpoint) {
+    InvocationExpectation expectation =
+        ruleset.expectMatchOf(assertedInvocation);
+    lock.lock();
+    try {
+      for (DuppleInvocation recordedInvocation : since(merged(), checkpoint)) {
+        if (!isEvicted(recordedInvocation)
+            && recordedInvocation.matchedBy(expectation)) {
+          markVerified(recordedInvocation);
+          return true;
+        }
       }
+    } finally {
+      lock.unlock();
     }
 
     return false;
   }
 
+  /**
+   * Waits up to {@code timeoutNanos} for a call matching
+   * {@code assertedInvocation} to be recorded, and marks it verified. Returns
+   * as soon as one is found, or false if none was.
+   *
+   * Each wakeup matches only the calls merged since the last one. A waiter
+   * counts itself in {@link #waiting} before it first looks at the log, and
+   * a recorder reads {@link #waiting} after it publishes a call, both with
+   * volatile accesses. So either the waiter's first look finds the call, or
+   * the recorder sees the waiter and signals it, which it can only do once
+   * the waiter, holding {@link #lock} until then, is waiting for the signal.
+   * No call is left for a timer to find.
+   */
+  boolean awaitMatch(Invocation assertedInvocation,
+      InvocationMatchingRuleset ruleset, long timeoutNanos, long checkpoint) {
+    InvocationExpectation expectation =
+        ruleset.expectMatchOf(assertedInvocation);
+    long deadline = System.nanoTime() + timeoutNanos;
+    lock.lock();
+    try {
+      Waiter waiter = new Waiter(expectation, checkpoint, evictingVerified);
+      waiters.add(waiter);
+      waiting = waiters.size();
+      try {
+        waiter.check(since(merged(), checkpoint));
+        long remaining = timeoutNanos;
+        List<DuppleInvocation> checked = null;
+        while (waiter.match == null && remaining > 0) {
+          appended.awaitNanos(remaining);
+          List<DuppleInvocation> all = merged();
+          if (!reservoirs.isEmpty() && all != checked) {
+            // samples may have been displaced rather than appended
+            waiter.check(all);
+            checked = all;
+          }
+          remaining = deadline - System.nanoTime();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new AssertionError("Interrupted while waiting for "
+            + new DuppleInvocation(assertedInvocation));
+      } finally {
+        waiters.remove(waiter);
+        waiting = waiters.size();
+      }
+      if (waiter.match == null) {
+        return false;
+      }
+      markVerified(waiter.match);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Marks {@code invocation} verified, and if evicting, compacts verified
+   * calls out of the log once they make up half of it, so that eviction costs
+   * amortized constant time per call. Callers must hold {@link #lock}.
+   */
+  private void markVerified(DuppleInvocation invocation) {
+    if (invocation.isVerified()) {
+      return;
+    }
+    invocation.setVerified();
+    if (evictingVerified) {
+      verifiedSinceCompaction++;
+      compactIfWorthwhile();
+    }
+  }
+
+  private void compactIfWorthwhile() {
+    int size = recorded.size();
+    if (verifiedSinceCompaction == 0 || verifiedSinceCompaction * 2 < size) {
+      return;
+    }
+    evicted += removeVerified(recorded);
+    // Threads stay in the index even when emptied, to keep their count.
+    for (ThreadCalls each : byThread.values()) {
+      removeVerified(each.calls);
+    }
+    for (ArrayList<DuppleInvocation> each : byMethod.values()) {
+      removeVerified(each);
+    }
+    for (ReservoirSampler each : reservoirs) {
+      evicted += each.removeVerified();
+    }
+    changes++;
+    verifiedSinceCompaction = 0;
+  }
+
+  /**
+   * Removes verified calls from {@code calls}, keeping the rest in order, and
+   * returns how many calls were removed.
+   */
+  private static long removeVerified(ArrayList<DuppleInvocation> calls) {
+    int size = calls.size();
+    long removed = 0;
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      DuppleInvocation each = calls.get(i);
+      if (each.isVerified()) {
+        removed += each.getRepeats();
+      } else {
+        calls.set(kept++, each);
+      }
+    }
+    calls.subList(kept, size).clear();
+    if (kept * 4 < size) {
+      calls.trimToSize();
+    }
+    return removed;
+  }
+
+  /**
+   * A thread waiting in {@link #awaitMatch} for a matching call.
+   */
+  private static class Waiter {
+    private final InvocationExpectation expectation;
+    private final long checkpoint;
+    private final boolean skippingVerified;
+    DuppleInvocation match = null;
+
+    Waiter(InvocationExpectation expectation, long checkpoint,
+        boolean skippingVerified) {
+      this.expectation = expectation;
+      this.checkpoint = checkpoint;
+      this.skippingVerified = skippingVerified;
+    }
+
+    void check(List<DuppleInvocation> invocations) {
+      if (match != null) {
+        return;
+      }
+      for (DuppleInvocation each : invocations) {
+        if (skippingVerified && each.isVerified()) {
+          continue;
+        }
+        if (each.getSequence() >= checkpoint && each.matchedBy(expectation)) {
+          match = each;
+          return;
+        }
+      }
+    }
+  }
+
   public Invokable invokeToCheckMatch(final InvocationMatchingRuleset ruleset,
       final boolean shouldMatch) {
+    return invokeToCheckMatch(ruleset, shouldMatch, 0, 0);
+  }
+
+  /**
+   * As {@link #invokeToCheckMatch(InvocationMatchingRuleset, boolean)}, but
+   * only matches calls recorded since {@code checkpoint}, and waits up to
+   * {@code timeoutNanos} for a matching call to arrive.
+   */
+  public Invokable invokeToCheckMatch(final InvocationMatchingRuleset ruleset,
+      final boolean shouldMatch, final long timeoutNanos,
+      final long checkpoint) {
     return new Invokable() {
       @Override
       public Object invoke(Invocation assertedInvocation) throws Throwable {
-        if (matchesAny(assertedInvocation, ruleset)) {
+        if (matches(assertedInvocation)) {
           handleMatch(assertedInvocation);
         } else {
           handleNonMatch(assertedInvocation);
@@ -85,25 +829,170 @@ class InvocationLog extends ArrayList<DuppleInvocation> {
         return null;
       }
 
+      private boolean matches(Invocation assertedInvocation) {
+        if (timeoutNanos > 0) {
+          return awaitMatch(assertedInvocation, ruleset, timeoutNanos,
+              checkpoint);
+        }
+        return matchesAny(assertedInvocation, ruleset, checkpoint);
+      }
+
       private void handleMatch(Invocation assertedInvocation) {
         if (!shouldMatch) {
-          throw new AssertionError("Should not have invoked: "
+          throw new AssertionError("Should not have invoked" + within() + ": "
               + new DuppleInvocation(assertedInvocation));
         }
       }
 
       private void handleNonMatch(Invocation assertedInvocation) {
         if (shouldMatch) {
-          throw new AssertionError("Never invoked: "
+          throw new AssertionError("Never invoked" + within() + ": "
               + new DuppleInvocation(assertedInvocation)
               + "\nactually saw: {\n" + InvocationLog.this + "\n}");
         }
       }
+
+      private String within() {
+        if (timeoutNanos <= 0) {
+          return "";
+        }
+        return " within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms";
+      }
     };
   }
 
+  /**
+   * Returns an Invokable that checks that each call made to it matches a
+   * recorded call made after the one matched by the call before. If
+   * {@code withinThread}, every match must also be in one thread, though any
+   * thread will do; otherwise "after" is in sequence order, which follows
+   * happens-before between calls.
+   *
+   * For each thread still in the running, the checker remembers where its
+   * last match was, and looks for the next one from there in that thread's
+   * index only. The earliest match is always the best, so no backtracking is
+   * needed. Calls matched this way are not marked verified.
+   *
+   * Calls kept by a reservoir sample are in no thread's index, and the calls
+   * it dropped from between them are gone, so order within a thread cannot
+   * be checked for a log that has one: the checker throws
+   * {@link UnsupportedOperationException} rather than pass without looking.
+   */
+  Invokable invokeToCheckOrder(final InvocationMatchingRuleset ruleset,
+      final boolean withinThread) {
+    return new Invokable() {
+      private final List<DuppleInvocation> quoted =
+          new ArrayList<DuppleInvocation>();
+      // thread id to position of its last match, or (keyed by -1) the
+      // sequence of the last match; null before the first call
+      private Map<Long, Long> reached = null;
+
+      @Override
+      public Object invoke(Invocation assertedInvocation) throws Throwable {
+        if (withinThread && !reservoirs.isEmpty()) {
+          throw new UnsupportedOperationException("Cannot check order "
+              + "within a thread for recorders made with sampledPerMethod: "
+              + "use sampledOneIn, or assertInOrder");
+        }
+        quoted.add(new DuppleInvocation(assertedInvocation));
+        InvocationExpectation expectation =
+            ruleset.expectMatchOf(assertedInvocation);
+        String actual;
+        lock.lock();
+        try {
+          List<DuppleInvocation> all = merged();
+          reached = withinThread
+              ? nextInThreads(expectation)
+              : nextInSequence(expectation, all);
+          if (!reached.isEmpty()) {
+            return null;
+          }
+          actual = withinThread ? threadsToString() : Join.join("\n",
+              present(all).toArray(new Object[0]));
+        } finally {
+          lock.unlock();
+        }
+        throw new AssertionError("Not invoked in this order"
+            + (withinThread ? " by any one thread: " : ": ") + quoted
+            + "\nactually saw: {\n" + actual + "\n}");
+      }
+
+      private Map<Long, Long> nextInSequence(InvocationExpectation expectation,
+          List<DuppleInvocation> all) {
+        long after = reached == null ? 0 : reached.get(-1L) + 1;
+        Map<Long, Long> next = new HashMap<Long, Long>();
+        for (DuppleInvocation each : since(all, after)) {
+          if (!isEvicted(each) && each.matchedBy(expectation)) {
+            next.put(-1L, Math.max(each.getSequence(), after));
+            break;
+          }
+        }
+        return next;
+      }
+
+      private Map<Long, Long> nextInThreads(
+          InvocationExpectation expectation) {
+        Map<Long, Long> next = new HashMap<Long, Long>();
+        for (Map.Entry<Long, ThreadCalls> thread : byThread.entrySet()) {
+          long after = 0;
+          if (reached != null) {
+            Long last = reached.get(thread.getKey());
+            if (last == null) {
+              continue;
+            }
+            after = last + 1;
+          }
+          List<DuppleInvocation> calls = thread.getValue().calls;
+          for (int i = thread.getValue().indexOf(after); i < calls.size();
+              i++) {
+            DuppleInvocation each = calls.get(i);
+            if (!isEvicted(each) && each.matchedBy(expectation)) {
+              next.put(thread.getKey(),
+                  Math.max(each.getThreadSequence(), after));
+              break;
+            }
+          }
+        }
+        return next;
+      }
+    };
+  }
+
+  /**
+   * Lists the calls in this log by thread. Callers must hold {@link #lock}.
+   */
+  private String threadsToString() {
+    StringBuilder threads = new StringBuilder();
+    for (ThreadCalls each : byThread.values()) {
+      if (threads.length() > 0) {
+        threads.append("\n");
+      }
+      threads.append(each.name).append(": ").append(present(each.calls));
+    }
+    return threads.toString();
+  }
+
   @Override
   public String toString() {
-    return Join.join("\n", this.toArray(new Object[0]));
+    long evictedSoFar;
+    List<DuppleInvocation> invocations = new ArrayList<DuppleInvocation>();
+    lock.lock();
+    try {
+      evictedSoFar = evicted;
+      for (DuppleInvocation each : merged()) {
+        if (isEvicted(each)) {
+          evictedSoFar += each.getRepeats();
+        } else {
+          invocations.add(each);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    String calls = Join.join("\n", invocations.toArray(new Object[0]));
+    if (evictedSoFar == 0) {
+      return calls;
+    }
+    return calls + "\n(and " + evictedSoFar + " verified calls, evicted)";
   }
 }
@@ -15,33 +15,47 @@
 
 package org.dupple;
 
+import org.jmock.api.Action;
 import org.jmock.api.Expectation;
 import org.jmock.api.Imposteriser;
 import org.jmock.api.Invokable;
-import org.jmock.internal.InvocationDiverter;
-import org.jmock.internal.ProxiedObjectIdentity;
-import org.jmock.internal.ReturnDefaultValueAction;
 import org.jmock.lib.CamelCaseNamingScheme;
-import org.jmock.lib.legacy.ClassImposteriser;
 
-import java.io.File;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Implements {@link Dupplery} through heavy reuse of classes from jMock. By
  * default, there is one Dupplery per double (stub, recorder, etc). For more
  * details, see {@link Dupple}
  * 
+ * Calls to its doubles pass through an {@link InvocationEngine}, which is
+ * Dupple's own unless configured otherwise, for identity, the rememberer and
+ * permissive defaults; expectations are still jMock's.
+ * 
  * Note to reviewers and early-adopters: this class was named Dupplery, but was
  * renamed to make room to use Dupplery as the interface name.
  * 
  * @author Google
  */
-class JmockDupplery implements Dupplery {
+class JmockDupplery implements RecordingDupplery {
   private final InvocationLog invocations = new InvocationLog();
   private ExpectedCalls expectedCalls = new ExpectedCalls();
-  private final Imposteriser baseImposterizer = ClassImposteriser.INSTANCE;
+  private final Imposteriser baseImposterizer =
+      PregeneratedImposteriser.INSTANCE;
+  private final InvocationEngine engine;
+
+  JmockDupplery() {
+    this(InvocationEngine.Util.configured());
+  }
+
+  JmockDupplery(InvocationEngine engine) {
+    this.engine = engine;
+  }
 
   @SuppressWarnings("unchecked")
   public <T> T assertCalled(T target) {
@@ -66,6 +80,36 @@ class JmockDupplery implements Dupplery {
         shouldHaveCalled));
   }
 
+  @Override
+  public <T> T assertCalledWithin(T target, long timeout, TimeUnit unit,
+      boolean shouldHaveCalled) {
+    return imposterize(target, invocations.invokeToCheckMatch(
+        defaultRuleset(), shouldHaveCalled, unit.toNanos(timeout), 0));
+  }
+
+  @Override
+  public <T> T assertInOrder(T target, boolean withinThread) {
+    return imposterize(target, invocations.invokeToCheckOrder(
+        defaultRuleset(), withinThread));
+  }
+
+  @Override
+  public long checkpoint() {
+    return invocations.checkpoint();
+  }
+
+  @Override
+  public <T> T assertCalledSince(long checkpoint, T target,
+      boolean shouldHaveCalled) {
+    return imposterize(target, invocations.invokeToCheckMatch(
+        defaultRuleset(), shouldHaveCalled, 0, checkpoint));
+  }
+
+  @Override
+  public void assertNoOtherCallsSince(long checkpoint, Object target) {
+    invocations.assertNoUnverifiedInvocations(target, checkpoint);
+  }
+
   /**
    * Creates a mock object of type <var>typeToMock</var> and generates a name
    * for it.
@@ -75,16 +119,21 @@ class JmockDupplery implements Dupplery {
   }
 
   <T> T permissiveStub(Class<T> typeToMock) {
-    T stub = stub(typeToMock);
-    new StubExpectationBuilder(returnDefaultValueAction()).withLowPriority()
-        .fromAnyCallTo(stub);
-    return stub;
+    return permissiveStub(typeToMock, true);
   }
 
-  private ReturnDefaultValueAction returnDefaultValueAction() {
-    ReturnDefaultValueAction action = new ReturnDefaultValueAction();
-    action.addResult(File.class, new File("noDefault"));
-    return action;
+  /**
+   * If {@code shareDefaults}, each method of the stub returns the same default
+   * double every time it is called; otherwise each call returns a new one.
+   */
+  <T> T permissiveStub(Class<T> typeToMock, boolean shareDefaults) {
+    T stub = stub(typeToMock);
+    Action action = engine.permissiveDefaults();
+    if (shareDefaults) {
+      action = new SharedDefaultValueAction(action);
+    }
+    new StubExpectationBuilder(action).withLowPriority().fromAnyCallTo(stub);
+    return stub;
   }
 
   <T> String nameFor(Class<T> typeToMock) {
@@ -98,22 +147,56 @@ class JmockDupplery implements Dupplery {
 
   private Object objectStub(Class<?> typeToMock, final String name) {
     Invokable mock = expectedCalls.stubInvokable(name);
-    return imposterize(new ProxiedObjectIdentity(mock), typeToMock);
+    return imposterize(engine.withObjectIdentity(mock), typeToMock);
   }
 
   <T> T recordCalls(final Class<T> type) {
     return recordCalls(permissiveStub(type));
   }
 
-  @SuppressWarnings("unchecked")
+  <T> T recordCalls(final Class<T> type, RecorderBuilder options) {
+    return recordCalls(permissiveStub(type), options);
+  }
+
   public <T> T recordCalls(final T target) {
-    return imposterize(target, invocations.recordingInvokable(target));
+    return recordCalls(target, new RecorderBuilder());
+  }
+
+  /**
+   * Uses a proxy class generated for the target's type by
+   * {@link RecorderProxies} where possible, and a jMock imposter otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T recordCalls(final T target, RecorderBuilder options) {
+    options.applyTo(invocations);
+    CallRecorder callRecorder = options.callRecorder(invocations, target);
+    callRecorder.setCreator(this);
+    Object recorder =
+        RecorderProxies.INSTANCE.recorder(targetClass(target),
+            targetInterfaces(target), callRecorder);
+    if (recorder == null) {
+      recorder =
+          imposterize(target, invocations.recordingInvokable(callRecorder));
+    }
+    invocations.watchConcurrency(recorder, callRecorder);
+    DoubleRegistry.INSTANCE.register(recorder, this,
+        recordedClass(target));
+    return (T) recorder;
+  }
+
+  private Class<?> recordedClass(Object target) {
+    Class<?> imposterizedClass =
+        ImposterizationRememberer.Util.imposterizedClass(target);
+    if (imposterizedClass != null) {
+      return imposterizedClass;
+    }
+    return new DuppleableType(target.getClass()).targetClass();
   }
 
   Class<? extends Object> targetClass(Object target) {
-    if (target instanceof ImposterizationRememberer) {
-      Class<?> imposterizedClass =
-          ((ImposterizationRememberer) target).getImposterizedClass();
+    Class<?> imposterizedClass =
+        ImposterizationRememberer.Util.imposterizedClass(target);
+    if (imposterizedClass != null) {
       if (imposterizedClass.isInterface()) {
         return Object.class;
       }
@@ -139,8 +222,11 @@ class JmockDupplery implements Dupplery {
     Invokable invokable = mockObject;
     invokable = addRemembererInterface(invokable, mockedType);
     try {
-      return baseImposterizer.imposterise(invokable, mockedType, appendToArray(
-          ancilliaryTypes, ImposterizationRememberer.class));
+      Object imposter =
+          baseImposterizer.imposterise(invokable, mockedType, appendToArray(
+              ancilliaryTypes, ImposterizationRememberer.class));
+      DoubleRegistry.INSTANCE.register(imposter, this, mockedType);
+      return imposter;
     } catch (IllegalArgumentException e) {
       // TODO: test this in.
       if (mockedType != Object.class) {
@@ -153,8 +239,7 @@ class JmockDupplery implements Dupplery {
 
   private Invokable addRemembererInterface(final Invokable mockObject,
       final Class<?> mockedType) {
-    return new InvocationDiverter<ImposterizationRememberer>(
-        ImposterizationRememberer.class, rememberer(mockedType), mockObject);
+    return engine.withRememberer(mockObject, rememberer(mockedType));
   }
 
   private ImposterizationRememberer rememberer(final Class<?> rememberedType) {
@@ -185,12 +270,27 @@ class JmockDupplery implements Dupplery {
 
   @Override
   public List<Object> getInvocations() {
-    return new ArrayList<Object>(invocations);
+    return new ArrayList<Object>(invocations.snapshot());
+  }
+
+  @Override
+  public Stream<RecordedCall> getCalls(Method method) {
+    return invocations.calls(method);
+  }
+
+  @Override
+  public Map<Method, Long> getCallCounts() {
+    return invocations.callCounts();
+  }
+
+  @Override
+  public ConcurrencyReport getConcurrency(Object recorder) {
+    return invocations.concurrencyOf(recorder);
   }
 
   @SuppressWarnings("unchecked")
   <T> T imposterize(final T target, Invokable invokable) {
-    return (T) ClassImposteriser.INSTANCE.imposterise(invokable,
+    return (T) baseImposterizer.imposterise(invokable,
         targetClass(target), targetInterfaces(target));
   }
 
@@ -0,0 +1,62 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import org.jmock.api.Action;
+import org.jmock.api.Invokable;
+import org.jmock.internal.InvocationDiverter;
+import org.jmock.internal.ProxiedObjectIdentity;
+import org.jmock.internal.ReturnDefaultValueAction;
+
+import java.io.File;
+
+/**
+ * An {@link InvocationEngine} made of the jMock internals that Dupple used
+ * for identity, {@link ImposterizationRememberer} and permissive defaults
+ * before it had its own. Kept so that {@link DuppleInvocationEngine} can be
+ * checked and benchmarked against it.
+ *
+ * @author Google
+ */
+class JmockInvocationEngine implements InvocationEngine {
+  static final JmockInvocationEngine INSTANCE = new JmockInvocationEngine();
+
+  private JmockInvocationEngine() {
+    // use INSTANCE
+  }
+
+  @Override
+  public Invokable withObjectIdentity(Invokable stub) {
+    return new ProxiedObjectIdentity(stub);
+  }
+
+  @Override
+  public Invokable withRememberer(Invokable next,
+      ImposterizationRememberer rememberer) {
+    return new InvocationDiverter<ImposterizationRememberer>(
+        ImposterizationRememberer.class, rememberer, next);
+  }
+
+  @Override
+  public Action permissiveDefaults() {
+    ReturnDefaultValueAction action = new ReturnDefaultValueAction();
+    action.addResult(File.class, new File("noDefault"));
+    return action;
+  }
+
+  @Override
+  public String toString() {
+    return "jmock";
+  }
+}
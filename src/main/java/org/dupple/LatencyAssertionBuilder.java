@@ -0,0 +1,160 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import junit.framework.AssertionFailedError;
+import org.hamcrest.StringDescription;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers a latency budget that an upcoming method call is expected to
+ * keep to, and how many times to time it.
+ *
+ * This is an internal class, used only in builders for latency assertions.
+ * See {@link Dupple#assertCompletesWithin(long, TimeUnit)} for example use.
+ *
+ * @author Google
+ */
+public class LatencyAssertionBuilder {
+  private final long budgetNanos;
+  private double percentile = 100;
+  private int runs = 1;
+  private int warmUps = 0;
+
+  /**
+   * Constructs a {@link LatencyAssertionBuilder} that will expect calls to
+   * take no longer than {@code budgetNanos}.
+   */
+  protected LatencyAssertionBuilder(long budgetNanos) {
+    this.budgetNanos = budgetNanos;
+  }
+
+  /**
+   * Times the quoted call {@code runs} times. Defaults to 1.
+   */
+  public LatencyAssertionBuilder overRuns(int runs) {
+    if (runs < 1) {
+      throw new IllegalArgumentException("Cannot time " + runs + " runs");
+    }
+    this.runs = runs;
+    return this;
+  }
+
+  /**
+   * Makes the quoted call {@code iterations} times, untimed, before timing
+   * it, so that the JIT has compiled the code under test. Defaults to 0.
+   */
+  public LatencyAssertionBuilder warmingUp(int iterations) {
+    if (iterations < 0) {
+      throw new IllegalArgumentException("Cannot warm up " + iterations
+          + " times");
+    }
+    warmUps = iterations;
+    return this;
+  }
+
+  /**
+   * Only requires {@code percentile} percent of the timed runs, such as 99,
+   * to keep to the budget. Defaults to 100: every run must.
+   */
+  public LatencyAssertionBuilder atPercentile(double percentile) {
+    if (!(percentile > 0 && percentile <= 100)) {
+      throw new IllegalArgumentException("Not a percentile: " + percentile);
+    }
+    this.percentile = percentile;
+    return this;
+  }
+
+  /**
+   * Returns a wrapped latency-asserting proxy for {@code target}. When the
+   * proxy receives a method call {@code invocation}, it makes the same call
+   * on {@code target} for each warm-up and each run, timing each run with
+   * {@link System#nanoTime()}, and asserts that the runs kept to the budget.
+   * The percentile is taken from the exact timings; on failure, the message
+   * includes a histogram of them.
+   *
+   * Example usage:
+   *
+   * <pre>
+   * assertCompletesWithin(2, MILLISECONDS).atPercentile(99).overRuns(1000)
+   *     .warmingUp(100).from(index).lookup("key");
+   * </pre>
+   */
+  public <T> T from(final T target) {
+    return new JmockDupplery().imposterize(target, new Invokable() {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        for (int i = 0; i < warmUps; i++) {
+          invocation.applyTo(target);
+        }
+        long[] timings = new long[runs];
+        for (int i = 0; i < runs; i++) {
+          long start = System.nanoTime();
+          invocation.applyTo(target);
+          timings[i] = System.nanoTime() - start;
+        }
+        checkLatency(target, invocation, timings);
+        return DefaultValueAction.INSTANCE.invoke(invocation);
+      }
+    });
+  }
+
+  private void checkLatency(Object target, Invocation invocation,
+      long[] timings) {
+    Arrays.sort(timings);
+    long measured = percentileOf(timings, percentile);
+    if (measured > budgetNanos) {
+      LatencyHistogram latencies = new LatencyHistogram();
+      for (long each : timings) {
+        latencies.record(each);
+      }
+      // described against the target, as the proxy's toString is measured
+      Invocation onTarget = new Invocation(target,
+          invocation.getInvokedMethod(), invocation.getParametersAsArray());
+      throw new AssertionFailedError("When calling "
+          + StringDescription.toString(onTarget) + ", Expected: "
+          + describePercentile() + " within "
+          + LatencyHistogram.describe(budgetNanos) + " but got "
+          + LatencyHistogram.describe(measured) + " over " + runs
+          + (runs == 1 ? " run" : " runs") + " ("
+          + latencies.describePercentiles() + ")\n"
+          + latencies.describeDistribution());
+    }
+  }
+
+  /**
+   * Returns the timing that {@code percent} percent of {@code sorted} are no
+   * longer than, exactly; a {@link LatencyHistogram} would round it up to
+   * the top of its bucket, failing runs that kept to the budget.
+   */
+  static long percentileOf(long[] sorted, double percent) {
+    int wanted = Math.max(1, (int) Math.ceil(percent / 100 * sorted.length));
+    return sorted[Math.min(wanted, sorted.length) - 1];
+  }
+
+  private String describePercentile() {
+    if (percentile == 100) {
+      return "every call";
+    }
+    String p = percentile == Math.rint(percentile)
+        ? String.valueOf((long) percentile)
+        : String.valueOf(percentile);
+    return "p" + p;
+  }
+}
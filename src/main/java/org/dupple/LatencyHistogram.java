@@ -0,0 +1,172 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+/**
+ * Counts call latencies in buckets whose width grows with the latency, so
+ * that recording is a few shifts and an array increment, memory is fixed,
+ * and percentiles are within about 6% of the true value. Not thread-safe:
+ * each thread records into its own histogram, and they are added together
+ * afterwards.
+ *
+ * @author Google
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int HALF_BUCKET = 1 << (SUB_BUCKET_BITS - 1);
+
+  private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1)
+      * HALF_BUCKET + HALF_BUCKET];
+  private long count = 0;
+  private long max = 0;
+
+  void record(long nanos) {
+    counts[indexOf(Math.max(nanos, 0))]++;
+    count++;
+    if (nanos > max) {
+      max = nanos;
+    }
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    max = Math.max(max, other.max);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the latency that {@code percent} percent of calls took no longer
+   * than, rounded up to the top of its bucket, or 0 if nothing was recorded.
+   */
+  long percentile(double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long wanted = Math.max(1, (long) Math.ceil(percent / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= wanted) {
+        return Math.min(highestIn(i), max);
+      }
+    }
+    return max;
+  }
+
+  private static int indexOf(long nanos) {
+    int shift = 64 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    if (shift <= 0) {
+      return (int) nanos;
+    }
+    return shift * HALF_BUCKET + (int) (nanos >>> shift);
+  }
+
+  private static long highestIn(int index) {
+    if (index < 2 * HALF_BUCKET) {
+      return index;
+    }
+    int shift = index / HALF_BUCKET - 1;
+    long subBucket = index % HALF_BUCKET + HALF_BUCKET;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Returns the usual percentiles, such as "p50=1.2us p90=3.4us p99=12us
+   * max=1.5ms".
+   */
+  String describePercentiles() {
+    return "p50=" + describe(percentile(50)) + " p90="
+        + describe(percentile(90)) + " p99=" + describe(percentile(99))
+        + " max=" + describe(max);
+  }
+
+  /**
+   * Returns a text histogram of the latencies, one row per doubling of
+   * latency, such as {@code "  <= 2.05us |      950 | ####"}.
+   */
+  String describeDistribution() {
+    int groups = counts.length / HALF_BUCKET;
+    long[] byGroup = new long[groups];
+    int first = groups;
+    int last = -1;
+    long most = 0;
+    for (int group = 0; group < groups; group++) {
+      for (int i = group * HALF_BUCKET; i < (group + 1) * HALF_BUCKET; i++) {
+        byGroup[group] += counts[i];
+      }
+      if (byGroup[group] > 0) {
+        first = Math.min(first, group);
+        last = group;
+        most = Math.max(most, byGroup[group]);
+      }
+    }
+    StringBuilder rows = new StringBuilder();
+    for (int group = first; group <= last; group++) {
+      String upTo = describe(highestIn((group + 1) * HALF_BUCKET - 1));
+      rows.append("  <= ").append(pad(upTo, 7)).append(" | ")
+          .append(pad(String.valueOf(byGroup[group]), 8)).append(" | ");
+      for (long i = 0; i < (byGroup[group] * 40 + most - 1) / most; i++) {
+        rows.append('#');
+      }
+      rows.append('\n');
+    }
+    return rows.toString();
+  }
+
+  private static String pad(String text, int width) {
+    StringBuilder padded = new StringBuilder(text);
+    while (padded.length() < width) {
+      padded.insert(0, ' ');
+    }
+    return padded.toString();
+  }
+
+  /**
+   * Returns {@code nanos} in the largest unit that keeps it at least 1, to
+   * about three significant figures.
+   */
+  static String describe(long nanos) {
+    if (nanos < 1000) {
+      return nanos + "ns";
+    }
+    if (nanos < 1000000) {
+      return threeFigures(nanos / 1e3) + "us";
+    }
+    if (nanos < 1000000000) {
+      return threeFigures(nanos / 1e6) + "ms";
+    }
+    return threeFigures(nanos / 1e9) + "s";
+  }
+
+  private static String threeFigures(double value) {
+    if (value >= 100) {
+      return String.valueOf(Math.round(value));
+    }
+    if (value >= 10) {
+      return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+    return String.valueOf(Math.round(value * 100) / 100.0);
+  }
+}
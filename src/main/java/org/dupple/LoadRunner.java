@@ -0,0 +1,157 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.jmock.api.Invocation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Calls a quoted call over and over, from one or more threads at once: first
+ * for a warm-up period, so that the JIT has compiled the code under test,
+ * then for a measured period. Used by the performance assertion builders.
+ *
+ * The calling thread is one of the threads, so that a single-threaded run
+ * calls the target from the test's own thread.
+ *
+ * @author Google
+ */
+class LoadRunner {
+  private final int threads;
+  private final long warmUpNanos;
+  private final long runNanos;
+
+  LoadRunner(int threads, long warmUpNanos, long runNanos) {
+    this.threads = threads;
+    this.warmUpNanos = warmUpNanos;
+    this.runNanos = runNanos;
+  }
+
+  /**
+   * Calls {@code invocation} on {@code target} until the run is over, and
+   * returns what was measured. If any call throws, stops every thread and
+   * throws that.
+   */
+  Result run(final Invocation invocation, final Object target)
+      throws Throwable {
+    long start = System.nanoTime();
+    final long measureFrom = start + warmUpNanos;
+    final long measureUntil = measureFrom + runNanos;
+    final AtomicReference<Throwable> failure =
+        new AtomicReference<Throwable>();
+    Worker[] workers = new Worker[threads];
+    Thread[] started = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(invocation, target, measureFrom, measureUntil,
+          failure);
+      if (i > 0) {
+        started[i] = new Thread(workers[i], "dupple-load-" + i);
+        started[i].start();
+      }
+    }
+    workers[0].run();
+    for (int i = 1; i < threads; i++) {
+      started[i].join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    Result result = new Result(threads);
+    for (Worker each : workers) {
+      result.add(each);
+    }
+    return result;
+  }
+
+  private static class Worker implements Runnable {
+    private final Invocation invocation;
+    private final Object target;
+    private final long measureFrom;
+    private final long measureUntil;
+    private final AtomicReference<Throwable> failure;
+    final LatencyHistogram latencies = new LatencyHistogram();
+    long lastEnded;
+
+    Worker(Invocation invocation, Object target, long measureFrom,
+        long measureUntil, AtomicReference<Throwable> failure) {
+      this.invocation = invocation;
+      this.target = target;
+      this.measureFrom = measureFrom;
+      this.measureUntil = measureUntil;
+      this.failure = failure;
+    }
+
+    @Override
+    public void run() {
+      try {
+        long now = System.nanoTime();
+        while (now < measureFrom && failure.get() == null) {
+          invocation.applyTo(target);
+          now = System.nanoTime();
+        }
+        while (now < measureUntil && failure.get() == null) {
+          invocation.applyTo(target);
+          long ended = System.nanoTime();
+          latencies.record(ended - now);
+          now = ended;
+        }
+        lastEnded = now;
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      }
+    }
+  }
+
+  /**
+   * The calls made during the measured period, by every thread.
+   */
+  static class Result {
+    final int threads;
+    final LatencyHistogram latencies = new LatencyHistogram();
+    private long measureFrom = Long.MAX_VALUE;
+    private long lastEnded = Long.MIN_VALUE;
+
+    Result(int threads) {
+      this.threads = threads;
+    }
+
+    void add(Worker worker) {
+      latencies.add(worker.latencies);
+      measureFrom = Math.min(measureFrom, worker.measureFrom);
+      lastEnded = Math.max(lastEnded, worker.lastEnded);
+    }
+
+    /**
+     * Returns the time from the start of the measured period until the last
+     * call ended, which may be a little longer than the period asked for.
+     */
+    long elapsedNanos() {
+      return Math.max(1, lastEnded - measureFrom);
+    }
+
+    double callsPer(TimeUnit unit) {
+      return latencies.getCount() * (double) unit.toNanos(1) / elapsedNanos();
+    }
+
+    @Override
+    public String toString() {
+      return latencies.getCount() + " calls in "
+          + LatencyHistogram.describe(elapsedNanos()) + " on " + threads
+          + (threads == 1 ? " thread" : " threads") + ", latency "
+          + latencies.describePercentiles();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeMatcher;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which methods a recorder records. Each method is tested against the
+ * filter's matchers once; after that the decision is a single hash lookup, so
+ * calls to methods that are not recorded go straight through to the target.
+ *
+ * @author Google
+ */
+class MethodFilter {
+  private final List<Matcher<? super Method>> recorded;
+  private final ConcurrentMap<Method, Boolean> decisions =
+      new ConcurrentHashMap<Method, Boolean>();
+
+  /**
+   * Records calls to methods matched by every one of {@code recorded}.
+   */
+  MethodFilter(List<Matcher<? super Method>> recorded) {
+    this.recorded = recorded;
+  }
+
+  boolean records(Method method) {
+    Boolean decision = decisions.get(method);
+    if (decision == null) {
+      decision = decide(method);
+      decisions.putIfAbsent(method, decision);
+    }
+    return decision;
+  }
+
+  private boolean decide(Method method) {
+    for (Matcher<? super Method> each : recorded) {
+      if (!each.matches(method)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a matcher for methods with any of the given names.
+   */
+  static Matcher<Method> named(String... names) {
+    final Set<String> nameSet = new HashSet<String>(Arrays.asList(names));
+    return new TypeSafeMatcher<Method>() {
+      @Override
+      public boolean matchesSafely(Method method) {
+        return nameSet.contains(method.getName());
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("a method named one of " + nameSet);
+      }
+    };
+  }
+}
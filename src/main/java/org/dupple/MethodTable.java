@@ -0,0 +1,96 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives each method seen by an {@link InvocationLog} a small integer id, and
+ * remembers everything the log needs to decide about that method, so that
+ * recording a call costs one hash lookup and no allocation. Also counts the
+ * calls to each method, whether or not they are kept.
+ *
+ * @author Google
+ */
+class MethodTable {
+  /**
+   * What a log knows about one method.
+   */
+  static class Entry {
+    final int id;
+    final Method method;
+    final boolean ignored;
+    final LongAdder calls = new LongAdder();
+
+    Entry(int id, Method method) {
+      this.id = id;
+      this.method = method;
+      this.ignored =
+          method.getDeclaringClass().equals(ImposterizationRememberer.class);
+    }
+  }
+
+  private final ConcurrentMap<Method, Entry> byMethod =
+      new ConcurrentHashMap<Method, Entry>();
+  private final ReentrantLock registering = new ReentrantLock();
+  private volatile Entry[] byId = new Entry[16];
+  private int size = 0;
+
+  Entry entryFor(Method method) {
+    Entry entry = byMethod.get(method);
+    if (entry != null) {
+      return entry;
+    }
+    return register(method);
+  }
+
+  Method method(int id) {
+    return byId[id].method;
+  }
+
+  /**
+   * Returns every method seen so far, in no particular order.
+   */
+  Collection<Entry> entries() {
+    return byMethod.values();
+  }
+
+  private Entry register(Method method) {
+    registering.lock();
+    try {
+      Entry entry = byMethod.get(method);
+      if (entry == null) {
+        entry = new Entry(size, method);
+        Entry[] ids = byId;
+        if (size == ids.length) {
+          Entry[] grown = new Entry[size * 2];
+          System.arraycopy(ids, 0, grown, 0, size);
+          ids = grown;
+        }
+        ids[size++] = entry;
+        byId = ids;
+        byMethod.put(method, entry);
+      }
+      return entry;
+    } finally {
+      registering.unlock();
+    }
+  }
+}
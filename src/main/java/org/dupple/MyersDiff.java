@@ -0,0 +1,127 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds a shortest edit script between two sequences of symbols, using
+ * Myers' O((N+M)D) algorithm after trimming any common prefix and suffix. On
+ * sequences that mostly agree, D is small and the diff runs in close to
+ * linear time; keeping the search history costs O(D^2) memory.
+ *
+ * @author Google
+ */
+class MyersDiff {
+  /**
+   * What to do with one symbol of either sequence.
+   */
+  enum Step {
+    KEEP, DELETE, INSERT
+  }
+
+  private MyersDiff() {
+    // static utility
+  }
+
+  /**
+   * Returns the steps that turn {@code a} into {@code b}: each symbol of
+   * {@code a} is kept or deleted, and each symbol of {@code b} is kept or
+   * inserted, in order.
+   */
+  static List<Step> diff(int[] a, int[] b) {
+    int prefix = 0;
+    while (prefix < a.length && prefix < b.length && a[prefix] == b[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < a.length - prefix && suffix < b.length - prefix
+        && a[a.length - 1 - suffix] == b[b.length - 1 - suffix]) {
+      suffix++;
+    }
+    List<Step> steps = new ArrayList<Step>(Math.max(a.length, b.length));
+    steps.addAll(Collections.nCopies(prefix, Step.KEEP));
+    steps.addAll(middle(Arrays.copyOfRange(a, prefix, a.length - suffix),
+        Arrays.copyOfRange(b, prefix, b.length - suffix)));
+    steps.addAll(Collections.nCopies(suffix, Step.KEEP));
+    return steps;
+  }
+
+  private static List<Step> middle(int[] a, int[] b) {
+    int n = a.length;
+    int m = b.length;
+    int max = n + m;
+    int[] v = new int[2 * max + 2];
+    List<int[]> trace = new ArrayList<int[]>();
+    for (int d = 0; d <= max; d++) {
+      // the furthest x on each diagonal -d..d, as it was before step d
+      trace.add(Arrays.copyOfRange(v, max - d, max + d + 1));
+      for (int k = -d; k <= d; k += 2) {
+        int x;
+        if (k == -d || (k != d && v[max + k - 1] < v[max + k + 1])) {
+          x = v[max + k + 1];
+        } else {
+          x = v[max + k - 1] + 1;
+        }
+        int y = x - k;
+        while (x < n && y < m && a[x] == b[y]) {
+          x++;
+          y++;
+        }
+        v[max + k] = x;
+        if (x >= n && y >= m) {
+          return backtrack(trace, d, n, m);
+        }
+      }
+    }
+    throw new IllegalStateException("unreachable: no path within N+M");
+  }
+
+  private static List<Step> backtrack(List<int[]> trace, int length, int n,
+      int m) {
+    List<Step> reversed = new ArrayList<Step>();
+    int x = n;
+    int y = m;
+    for (int d = length; d > 0; d--) {
+      int[] before = trace.get(d);
+      int k = x - y;
+      int previousK;
+      if (k == -d || (k != d && before[k - 1 + d] < before[k + 1 + d])) {
+        previousK = k + 1;
+      } else {
+        previousK = k - 1;
+      }
+      int previousX = before[previousK + d];
+      int previousY = previousX - previousK;
+      while (x > previousX && y > previousY) {
+        reversed.add(Step.KEEP);
+        x--;
+        y--;
+      }
+      reversed.add(previousK == k + 1 ? Step.INSERT : Step.DELETE);
+      x = previousX;
+      y = previousY;
+    }
+    while (x > 0) {
+      reversed.add(Step.KEEP);
+      x--;
+    }
+    Collections.reverse(reversed);
+    return reversed;
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+
+/**
+ * Two methods of a recorded target that ran at the same time, and how many
+ * times they did. Part of a {@link ConcurrencyReport}.
+ *
+ * @author Google
+ */
+public class Overlap {
+  private final Key key;
+  private final long count;
+
+  Overlap(Key key, long count) {
+    this.key = key;
+    this.count = count;
+  }
+
+  /**
+   * Returns one of the methods. Of the two, this is the first by name.
+   */
+  public Method getFirst() {
+    return key.first;
+  }
+
+  /**
+   * Returns the other method, which may be the same as {@link #getFirst()}
+   * if two calls to one method overlapped.
+   */
+  public Method getSecond() {
+    return key.second;
+  }
+
+  /**
+   * Returns how many times a call to one method started while a call to the
+   * other was running.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    String overlap = key.first.getName() + " with " + key.second.getName();
+    if (count == 1) {
+      return overlap;
+    }
+    return overlap + " \u00d7" + count;
+  }
+
+  /**
+   * An unordered pair of methods.
+   */
+  static class Key {
+    final Method first;
+    final Method second;
+
+    Key(Method one, Method other) {
+      if (one.toString().compareTo(other.toString()) <= 0) {
+        first = one;
+        second = other;
+      } else {
+        first = other;
+        second = one;
+      }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return first.equals(other.first) && second.equals(other.second);
+    }
+
+    @Override
+    public int hashCode() {
+      return first.hashCode() * 31 + second.hashCode();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Asks for proxy classes for the given interfaces to be generated when the
+ * annotated class or package is compiled, so that doubling them does not
+ * generate classes at run time. For example:
+ *
+ * <pre>
+ * &#64;PregenerateProxies({Selenium.class, Clock.class})
+ * public class CheckoutTest extends TestCase {
+ * </pre>
+ *
+ * Generation is done by {@link PregeneratedProxyProcessor}, which javac
+ * finds on the classpath along with Dupple. Doubles of other types, and of
+ * classes, are still generated at run time.
+ *
+ * @author Google
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.TYPE, ElementType.PACKAGE})
+public @interface PregenerateProxies {
+  /**
+   * The interfaces to generate proxies for.
+   */
+  Class<?>[] value();
+}
@@ -0,0 +1,85 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.jmock.api.Imposteriser;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+import org.jmock.lib.legacy.ClassImposteriser;
+
+import java.lang.reflect.Method;
+
+/**
+ * Imposterizes an interface with a proxy class generated at build time, if
+ * there is one (see {@link PregenerateProxies}), and otherwise with
+ * {@link ClassImposteriser}, which generates one at run time.
+ *
+ * @author Google
+ */
+class PregeneratedImposteriser implements Imposteriser {
+  static final PregeneratedImposteriser INSTANCE =
+      new PregeneratedImposteriser();
+
+  private PregeneratedImposteriser() {
+    // use INSTANCE
+  }
+
+  @Override
+  public boolean canImposterise(Class<?> type) {
+    return ClassImposteriser.INSTANCE.canImposterise(type);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T imposterise(final Invokable mockObject, Class<T> mockedType,
+      Class<?>... ancilliaryTypes) {
+    Class<?>[] interfaces = interfacesOf(mockedType, ancilliaryTypes);
+    if (interfaces != null) {
+      Object proxy = PregeneratedProxies.INSTANCE.newProxy(interfaces,
+          new PregeneratedProxy.Handler() {
+            @Override
+            public Object handle(Object proxy, Method method,
+                Object[] arguments) throws Throwable {
+              return mockObject.invoke(new Invocation(proxy, method,
+                  arguments));
+            }
+          });
+      if (proxy != null) {
+        return (T) proxy;
+      }
+    }
+    return ClassImposteriser.INSTANCE.imposterise(mockObject, mockedType,
+        ancilliaryTypes);
+  }
+
+  /**
+   * Returns every interface an imposter of {@code mockedType} must implement,
+   * or null if {@code mockedType} is a class other than Object.
+   */
+  static Class<?>[] interfacesOf(Class<?> mockedType,
+      Class<?>[] ancilliaryTypes) {
+    if (mockedType == Object.class) {
+      return ancilliaryTypes;
+    }
+    if (!mockedType.isInterface()) {
+      return null;
+    }
+    Class<?>[] interfaces = new Class<?>[ancilliaryTypes.length + 1];
+    interfaces[0] = mockedType;
+    System.arraycopy(ancilliaryTypes, 0, interfaces, 1,
+        ancilliaryTypes.length);
+    return interfaces;
+  }
+}
@@ -0,0 +1,196 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds proxy classes generated at build time by
+ * {@link PregeneratedProxyProcessor}. The processor lists each class it
+ * generates, against the interface it proxies, in an {@link #INDEX} resource;
+ * the index is read once per class loader, and each lookup is remembered,
+ * including lookups that found nothing.
+ *
+ * Nothing here keeps a class loader alive: indexes, which hold only names,
+ * are kept weakly by loader, and lookups are kept with the interface they
+ * proxy, in a {@link ClassValue}.
+ *
+ * @author Google
+ */
+class PregeneratedProxies {
+  static final PregeneratedProxies INSTANCE = new PregeneratedProxies();
+
+  /**
+   * Lines of "interface proxy", each a binary class name.
+   */
+  static final String INDEX = "META-INF/org.dupple.proxies";
+
+  private static final Object NONE = new Object();
+
+  private final Map<ClassLoader, Map<String, List<String>>> indexes =
+      Collections.synchronizedMap(
+          new WeakHashMap<ClassLoader, Map<String, List<String>>>());
+  // for each proxied interface: each set of interfaces including it, to
+  // the constructor of its proxy, or NONE
+  private final ClassValue<ConcurrentMap<List<Class<?>>, Object>> constructors =
+      new ClassValue<ConcurrentMap<List<Class<?>>, Object>>() {
+        @Override
+        protected ConcurrentMap<List<Class<?>>, Object> computeValue(
+            Class<?> type) {
+          return new ConcurrentHashMap<List<Class<?>>, Object>();
+        }
+      };
+
+  private PregeneratedProxies() {
+    // use INSTANCE
+  }
+
+  /**
+   * Returns a new proxy implementing exactly {@code interfaces}, which sends
+   * every call to {@code handler}, or null if none was generated.
+   */
+  Object newProxy(Class<?>[] interfaces, PregeneratedProxy.Handler handler) {
+    Class<?> proxied = proxiedInterface(interfaces);
+    if (proxied == null) {
+      return null;
+    }
+    ConcurrentMap<List<Class<?>>, Object> lookups = constructors.get(proxied);
+    List<Class<?>> key = Arrays.<Class<?>>asList(interfaces.clone());
+    Object constructor = lookups.get(key);
+    if (constructor == null) {
+      constructor = find(proxied, interfaces);
+      lookups.putIfAbsent(key, constructor);
+    }
+    if (constructor == NONE) {
+      return null;
+    }
+    try {
+      return ((Constructor<?>) constructor).newInstance(handler);
+    } catch (Exception e) {
+      throw new IllegalStateException("Cannot create pregenerated proxy", e);
+    }
+  }
+
+  /**
+   * Returns the interface a proxy for {@code interfaces} would be generated
+   * for, and indexed against, or null if there is none.
+   */
+  private static Class<?> proxiedInterface(Class<?>[] interfaces) {
+    for (Class<?> each : interfaces) {
+      if (each != ImposterizationRememberer.class) {
+        return each;
+      }
+    }
+    return null;
+  }
+
+  private Object find(Class<?> proxied, Class<?>[] interfaces) {
+    ClassLoader loader = proxied.getClassLoader();
+    if (loader == null) {
+      loader = PregeneratedProxies.class.getClassLoader();
+    }
+    List<String> candidates = indexFor(loader).get(proxied.getName());
+    if (candidates == null) {
+      return NONE;
+    }
+    for (String candidate : candidates) {
+      Constructor<?> constructor = constructorOf(candidate, loader,
+          interfaces);
+      if (constructor != null) {
+        return constructor;
+      }
+    }
+    return NONE;
+  }
+
+  private Constructor<?> constructorOf(String className, ClassLoader loader,
+      Class<?>[] interfaces) {
+    try {
+      Class<?> proxyClass = Class.forName(className, true, loader);
+      if (proxyClass.getSuperclass() != PregeneratedProxy.class
+          || !new HashSet<Class<?>>(Arrays.asList(proxyClass.getInterfaces()))
+              .equals(new HashSet<Class<?>>(Arrays.asList(interfaces)))) {
+        return null;
+      }
+      return proxyClass.getConstructor(PregeneratedProxy.Handler.class);
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (LinkageError e) {
+      return null; // generated against an older version: fall back
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  private Map<String, List<String>> indexFor(ClassLoader loader) {
+    Map<String, List<String>> index = indexes.get(loader);
+    if (index == null) {
+      index = readIndex(loader);
+      indexes.put(loader, index);
+    }
+    return index;
+  }
+
+  private static Map<String, List<String>> readIndex(ClassLoader loader) {
+    Map<String, List<String>> index = new HashMap<String, List<String>>();
+    try {
+      for (Enumeration<URL> it = loader.getResources(INDEX);
+          it.hasMoreElements();) {
+        readIndex(it.nextElement(), index);
+      }
+    } catch (IOException e) {
+      return Collections.emptyMap(); // generate at run time instead
+    }
+    return index;
+  }
+
+  private static void readIndex(URL url, Map<String, List<String>> index)
+      throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        url.openStream(), "UTF-8"));
+    try {
+      for (String line = reader.readLine(); line != null;
+          line = reader.readLine()) {
+        String[] entry = line.trim().split("\\s+");
+        if (entry.length != 2) {
+          continue;
+        }
+        List<String> proxies = index.get(entry[0]);
+        if (proxies == null) {
+          proxies = new ArrayList<String>();
+          index.put(entry[0], proxies);
+        }
+        proxies.add(entry[1]);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+
+/**
+ * The superclass of proxy classes generated at build time by
+ * {@link PregeneratedProxyProcessor}. Each generated method passes its
+ * {@link Method} and arguments to {@link #dupple$handle}; nothing is generated
+ * at run time.
+ *
+ * Public only so that generated classes in other packages can extend it.
+ *
+ * @author Google
+ */
+public abstract class PregeneratedProxy {
+  /**
+   * Receives every call made to a pregenerated proxy.
+   */
+  public interface Handler {
+    Object handle(Object proxy, Method method, Object[] arguments)
+        throws Throwable;
+  }
+
+  private final Handler handler;
+
+  protected PregeneratedProxy(Handler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Passes a call to the handler. Anything the handler throws is rethrown
+   * as is, checked or not, as from a dynamic proxy.
+   */
+  protected final Object dupple$handle(Method method, Object[] arguments) {
+    try {
+      return handler.handle(this, method, arguments);
+    } catch (Throwable t) {
+      throw PregeneratedProxy.<RuntimeException>rethrow(t);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E extends Throwable> E rethrow(Throwable t) throws E {
+    throw (E) t;
+  }
+
+  /**
+   * Looks up a proxied method, once, when a generated class is initialized.
+   */
+  protected static Method dupple$method(Class<?> type, String name,
+      Class<?>... parameterTypes) {
+    try {
+      return type.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      throw new NoSuchMethodError(type.getName() + "." + name
+          + ": regenerate proxies for " + type);
+    }
+  }
+}
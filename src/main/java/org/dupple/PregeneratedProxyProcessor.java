@@ -0,0 +1,373 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates, at build time, the proxy classes asked for by
+ * {@link PregenerateProxies}, and lists them in the
+ * {@link PregeneratedProxies#INDEX} resource where Dupple looks for them.
+ *
+ * For each interface, two proxies are generated: one also implementing
+ * {@link ImposterizationRememberer}, as stubs, recorders and assertions do,
+ * and one implementing just the interface, as quoting builders do. Each is
+ * generated in the interface's package, unless that is a {@code java}
+ * package. Methods are generated with erased types, so the proxies are raw.
+ *
+ * @author Google
+ */
+@SupportedAnnotationTypes("org.dupple.PregenerateProxies")
+public class PregeneratedProxyProcessor extends AbstractProcessor {
+  private static final String REMEMBERER =
+      ImposterizationRememberer.class.getCanonicalName();
+
+  private final Set<String> indexLines = new TreeSet<String>();
+  private final Set<String> generated = new TreeSet<String>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations,
+      RoundEnvironment round) {
+    if (round.processingOver()) {
+      writeIndex();
+      return false;
+    }
+    for (TypeElement annotation : annotations) {
+      for (Element annotated : round.getElementsAnnotatedWith(annotation)) {
+        for (TypeElement each : typesNamedBy(annotated)) {
+          generateProxies(each, annotated);
+        }
+      }
+    }
+    return true;
+  }
+
+  private List<TypeElement> typesNamedBy(Element annotated) {
+    List<TypeElement> types = new ArrayList<TypeElement>();
+    for (AnnotationMirror mirror : annotated.getAnnotationMirrors()) {
+      TypeElement annotationType =
+          (TypeElement) mirror.getAnnotationType().asElement();
+      if (!annotationType.getQualifiedName().contentEquals(
+          PregenerateProxies.class.getCanonicalName())) {
+        continue;
+      }
+      for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue>
+          entry : mirror.getElementValues().entrySet()) {
+        for (Object value : (List<?>) entry.getValue().getValue()) {
+          TypeMirror type = (TypeMirror) ((AnnotationValue) value).getValue();
+          types.add((TypeElement) ((DeclaredType) type).asElement());
+        }
+      }
+    }
+    return types;
+  }
+
+  private void generateProxies(TypeElement type, Element annotated) {
+    if (type.getKind() != ElementKind.INTERFACE) {
+      error(annotated, type + " is not an interface");
+      return;
+    }
+    if (type.getModifiers().contains(Modifier.PRIVATE)) {
+      error(annotated, type + " is private");
+      return;
+    }
+    String binaryName =
+        processingEnv.getElementUtils().getBinaryName(type).toString();
+    if (!generated.add(binaryName)) {
+      return;
+    }
+    String packageName = packageOf(type);
+    String simpleName;
+    if (packageName.equals("java") || packageName.startsWith("java.")) {
+      packageName = packageOf(annotated);
+      simpleName = binaryName.replace('.', '_').replace('$', '_');
+    } else {
+      simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1)
+          .replace('$', '_');
+    }
+    List<ExecutableElement> methods = methodsOf(type);
+    generate(type, annotated, packageName, simpleName + "_DuppleProxy",
+        methods, true);
+    generate(type, annotated, packageName,
+        simpleName + "_DuppleQuotingProxy", methods, false);
+  }
+
+  private String packageOf(Element element) {
+    PackageElement pkg = processingEnv.getElementUtils().getPackageOf(element);
+    return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+  }
+
+  /**
+   * Returns every method a proxy of {@code type} must implement, one per
+   * erased signature, and those of Object that an imposter forwards.
+   */
+  private List<ExecutableElement> methodsOf(TypeElement type) {
+    Map<String, ExecutableElement> bySignature =
+        new LinkedHashMap<String, ExecutableElement>();
+    TypeElement object = processingEnv.getElementUtils().getTypeElement(
+        Object.class.getCanonicalName());
+    for (ExecutableElement each : ElementFilter.methodsIn(object
+        .getEnclosedElements())) {
+      String name = each.getSimpleName().toString();
+      if (name.equals("equals") || name.equals("hashCode")
+          || name.equals("toString")) {
+        bySignature.put(signatureOf(each), each);
+      }
+    }
+    for (ExecutableElement each : ElementFilter.methodsIn(
+        processingEnv.getElementUtils().getAllMembers(type))) {
+      Set<Modifier> modifiers = each.getModifiers();
+      if (modifiers.contains(Modifier.STATIC)
+          || modifiers.contains(Modifier.PRIVATE)
+          || each.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+        continue;
+      }
+      String signature = signatureOf(each);
+      ExecutableElement seen = bySignature.get(signature);
+      if (seen == null || returnsSubtype(each, seen)) {
+        bySignature.put(signature, each);
+      }
+    }
+    return new ArrayList<ExecutableElement>(bySignature.values());
+  }
+
+  private boolean returnsSubtype(ExecutableElement method,
+      ExecutableElement than) {
+    return processingEnv.getTypeUtils().isSubtype(
+        erased(method.getReturnType()), erased(than.getReturnType()));
+  }
+
+  private String signatureOf(ExecutableElement method) {
+    StringBuilder signature =
+        new StringBuilder(method.getSimpleName()).append('(');
+    for (VariableElement each : method.getParameters()) {
+      signature.append(erased(each.asType())).append(',');
+    }
+    return signature.append(')').toString();
+  }
+
+  private TypeMirror erased(TypeMirror type) {
+    return processingEnv.getTypeUtils().erasure(type);
+  }
+
+  private void generate(TypeElement type, Element annotated,
+      String packageName, String simpleName, List<ExecutableElement> methods,
+      boolean remembering) {
+    String className =
+        packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    String typeName = erased(type.asType()).toString();
+    StringBuilder source = new StringBuilder();
+    source.append("// Generated by ")
+        .append(PregeneratedProxyProcessor.class.getName())
+        .append(" for ").append(typeName).append(". Do not edit.\n");
+    if (!packageName.isEmpty()) {
+      source.append("package ").append(packageName).append(";\n");
+    }
+    source.append("\n@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n")
+        .append("public final class ").append(simpleName)
+        .append("\n    extends ").append(PregeneratedProxy.class.getName())
+        .append("\n    implements ").append(typeName);
+    if (remembering) {
+      source.append(", ").append(REMEMBERER);
+    }
+    source.append(" {\n");
+    for (int i = 0; i < methods.size(); i++) {
+      appendMethodField(source, i, methods.get(i));
+    }
+    if (remembering) {
+      appendMethodField(source, methods.size(), REMEMBERER,
+          "getImposterizedClass", "");
+      appendMethodField(source, methods.size() + 1, REMEMBERER,
+          "getCreator", "");
+    }
+    source.append("\n  public ").append(simpleName).append("(")
+        .append(PregeneratedProxy.Handler.class.getCanonicalName())
+        .append(" handler) {\n    super(handler);\n  }\n");
+    for (int i = 0; i < methods.size(); i++) {
+      appendMethod(source, i, methods.get(i));
+    }
+    if (remembering) {
+      source.append("\n  public java.lang.Class getImposterizedClass() {\n")
+          .append("    return (java.lang.Class) dupple$handle(METHOD_")
+          .append(methods.size()).append(", new java.lang.Object[0]);\n  }\n");
+      source.append("\n  public ").append(Dupplery.class.getName())
+          .append(" getCreator() {\n    return (")
+          .append(Dupplery.class.getName()).append(") dupple$handle(METHOD_")
+          .append(methods.size() + 1)
+          .append(", new java.lang.Object[0]);\n  }\n");
+    }
+    source.append("}\n");
+    try {
+      Writer writer = processingEnv.getFiler().createSourceFile(className,
+          type, annotated).openWriter();
+      try {
+        writer.write(source.toString());
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      error(annotated, "Cannot write " + className + ": " + e);
+      return;
+    }
+    String binaryPackage = packageName.isEmpty() ? "" : packageName + ".";
+    indexLines.add(processingEnv.getElementUtils().getBinaryName(type) + " "
+        + binaryPackage + simpleName);
+  }
+
+  private void appendMethodField(StringBuilder source, int index,
+      ExecutableElement method) {
+    StringBuilder parameterTypes = new StringBuilder();
+    for (VariableElement each : method.getParameters()) {
+      parameterTypes.append(", ").append(erased(each.asType())).append(
+          ".class");
+    }
+    appendMethodField(source, index,
+        erased(method.getEnclosingElement().asType()).toString(),
+        method.getSimpleName().toString(), parameterTypes.toString());
+  }
+
+  /**
+   * {@code parameterTypes} is empty, or a class literal for each parameter,
+   * each preceded by a comma.
+   */
+  private void appendMethodField(StringBuilder source, int index,
+      String declaringType, String name, String parameterTypes) {
+    source.append("  private static final java.lang.reflect.Method METHOD_")
+        .append(index).append(" =\n      dupple$method(")
+        .append(declaringType).append(".class, \"").append(name)
+        .append('"').append(parameterTypes).append(");\n");
+  }
+
+  private void appendMethod(StringBuilder source, int index,
+      ExecutableElement method) {
+    TypeMirror returnType = erased(method.getReturnType());
+    source.append("\n  public ").append(returnType).append(' ')
+        .append(method.getSimpleName()).append('(');
+    List<? extends VariableElement> parameters = method.getParameters();
+    StringBuilder arguments = new StringBuilder();
+    for (int i = 0; i < parameters.size(); i++) {
+      if (i > 0) {
+        source.append(", ");
+        arguments.append(", ");
+      }
+      source.append(erased(parameters.get(i).asType())).append(" p")
+          .append(i);
+      arguments.append('p').append(i);
+    }
+    source.append(')');
+    List<? extends TypeMirror> thrown = method.getThrownTypes();
+    for (int i = 0; i < thrown.size(); i++) {
+      source.append(i == 0 ? " throws " : ", ").append(erased(thrown.get(i)));
+    }
+    source.append(" {\n    ");
+    String call = "dupple$handle(METHOD_" + index
+        + ", new java.lang.Object[] {" + arguments + "})";
+    TypeKind kind = returnType.getKind();
+    if (kind == TypeKind.VOID) {
+      source.append(call).append(";\n");
+    } else if (kind.isPrimitive()) {
+      source.append("java.lang.Object result = ").append(call)
+          .append(";\n    return result == null ? ").append(zeroOf(kind))
+          .append(" : (").append(processingEnv.getTypeUtils()
+              .boxedClass((PrimitiveType) returnType))
+          .append(") result;\n");
+    } else {
+      source.append("return (").append(returnType).append(") ")
+          .append(call).append(";\n");
+    }
+    source.append("  }\n");
+  }
+
+  private static String zeroOf(TypeKind kind) {
+    switch (kind) {
+      case BOOLEAN:
+        return "false";
+      case CHAR:
+        return "(char) 0";
+      case BYTE:
+        return "(byte) 0";
+      case SHORT:
+        return "(short) 0";
+      case LONG:
+        return "0L";
+      case FLOAT:
+        return "0F";
+      case DOUBLE:
+        return "0D";
+      default:
+        return "0";
+    }
+  }
+
+  private void writeIndex() {
+    if (indexLines.isEmpty()) {
+      return;
+    }
+    try {
+      FileObject index = processingEnv.getFiler().createResource(
+          StandardLocation.CLASS_OUTPUT, "", PregeneratedProxies.INDEX);
+      Writer writer = index.openWriter();
+      try {
+        for (String each : indexLines) {
+          writer.write(each + "\n");
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+          "Cannot write " + PregeneratedProxies.INDEX + ": " + e);
+    }
+  }
+
+  private void error(Element annotated, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+        "Cannot pregenerate proxy: " + message, annotated);
+  }
+}
@@ -0,0 +1,62 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.reflect.Method;
+
+/**
+ * A read-only view of one call recorded against a recorder, as streamed by
+ * {@link Dupple#calls(Object)}.
+ *
+ * @author Google
+ */
+public interface RecordedCall {
+  /**
+   * Returns the recorder the call was made on.
+   */
+  Object getInvokedObject();
+
+  Method getMethod();
+
+  /**
+   * Returns a copy of the arguments of the call.
+   */
+  Object[] getArguments();
+
+  /**
+   * Returns the position of the call among all calls recorded by the same
+   * Dupplery. Positions increase in the order calls were made, but need not
+   * be consecutive.
+   */
+  long getSequence();
+
+  /**
+   * Returns the {@link Thread#getId() id} of the thread that made the call.
+   */
+  long getThreadId();
+
+  /**
+   * Returns the name the calling thread had when it made the call.
+   */
+  String getThreadName();
+
+  /**
+   * Returns the position of the call among the calls made by the same thread
+   * and recorded by the same Dupplery: 0 for the thread's first call, 1 for
+   * its second, and so on. Returns -1 for a call kept only in the sample of a
+   * {@link RecorderBuilder#sampledPerMethod sampling} recorder.
+   */
+  long getThreadSequence();
+}
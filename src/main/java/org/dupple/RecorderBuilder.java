@@ -0,0 +1,222 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import static org.hamcrest.CoreMatchers.not;
+
+import org.hamcrest.Matcher;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects options for a recorder before creating it. Internal class, used
+ * only in builder expressions. For example:
+ *
+ * <pre>
+ * Selenium sel = Dupple.recording().stripedByThread().of(Selenium.class);
+ * </pre>
+ *
+ * @author Google
+ */
+public class RecorderBuilder {
+  private boolean stripedByThread = false;
+  private boolean evictingVerified = false;
+  private boolean collapsingRepeats = false;
+  private boolean trackingConcurrency = false;
+  private int oneIn = 1;
+  private int perMethod = 0;
+  private final List<Matcher<? super Method>> recordedMethods =
+      new ArrayList<Matcher<? super Method>>();
+
+  RecorderBuilder() {
+    // use Dupple.recording()
+  }
+
+  /**
+   * Each thread calling the recorder appends to its own buffer, tagged with a
+   * global sequence number. The buffers are merged, in sequence order, only
+   * when the log is read by an assertion, {@link Dupple#callsTo(Object)}, or
+   * {@link Dupple#assertNoOtherCalls(Object)}. Use this for recorders that are
+   * called heavily from many threads at once.
+   *
+   * Options that change the log apply to every recorder sharing the log of
+   * the recorded target's Dupplery.
+   */
+  public RecorderBuilder stripedByThread() {
+    stripedByThread = true;
+    return this;
+  }
+
+  /**
+   * Stores a run of identical calls, made one after another, as a single
+   * entry with a repeat count, such as {@code poll() \u00d710000}. Use this
+   * for heartbeat and polling collaborators. {@link Dupple#callsTo} still
+   * lists every call, and verifying a run verifies every call in it.
+   *
+   * Like {@link #stripedByThread()}, this changes the log shared by every
+   * recorder of the recorded target's Dupplery.
+   */
+  public RecorderBuilder collapsingRepeats() {
+    collapsingRepeats = true;
+    return this;
+  }
+
+  /**
+   * Drops each recorded call once an assertion has verified it, keeping only
+   * a count, so that memory use follows the unverified backlog rather than
+   * total traffic. Use this for endurance tests that record and verify
+   * continuously. A verified call can then be neither verified again nor seen
+   * by {@link Dupple#assertNotCalled}.
+   *
+   * Like {@link #stripedByThread()}, this changes the log shared by every
+   * recorder of the recorded target's Dupplery.
+   */
+  public RecorderBuilder evictingVerified() {
+    evictingVerified = true;
+    return this;
+  }
+
+  /**
+   * Counts how many calls run in the target at once, and which methods
+   * overlap, for {@link Dupple#concurrencyOf} and
+   * {@link Dupple#assertNeverConcurrent}. Use this around a collaborator that
+   * is not thread-safe. Tracking uses atomic counters on every call, so costs
+   * little under load, except that calls which do overlap also look up which
+   * other methods are running.
+   */
+  public RecorderBuilder trackingConcurrency() {
+    trackingConcurrency = true;
+    return this;
+  }
+
+  /**
+   * Keeps only the first of every {@code n} calls to each method, so that a
+   * recorder around a busy collaborator stays small. {@link Dupple#callCounts}
+   * still counts every call.
+   */
+  public RecorderBuilder sampledOneIn(int n) {
+    if (n < 1) {
+      throw new IllegalArgumentException("Cannot sample 1 in " + n);
+    }
+    oneIn = n;
+    perMethod = 0;
+    return this;
+  }
+
+  /**
+   * Keeps a uniform random sample of {@code size} calls to each method,
+   * however many calls are made. {@link Dupple#callCounts} still counts every
+   * call. The order of sampled calls within a thread is not kept, so
+   * {@link Dupple#assertInThreadOrder} is not supported for them.
+   */
+  public RecorderBuilder sampledPerMethod(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Cannot sample " + size
+          + " calls per method");
+    }
+    perMethod = size;
+    oneIn = 1;
+    return this;
+  }
+
+  /**
+   * Records only calls to methods with one of {@code methodNames}. Calls to
+   * other methods go straight through, and are neither recorded nor counted.
+   */
+  public RecorderBuilder recordingOnly(String... methodNames) {
+    return recordingMethods(MethodFilter.named(methodNames));
+  }
+
+  /**
+   * Does not record calls to methods with any of {@code methodNames}, such as
+   * chatty getters or {@code toString}. They go straight through to the
+   * target.
+   */
+  public RecorderBuilder ignoring(String... methodNames) {
+    return recordingMethods(not(MethodFilter.named(methodNames)));
+  }
+
+  /**
+   * Records only calls to methods matched by {@code methods}. Each method is
+   * matched once, and the answer remembered. May be combined with
+   * {@link #recordingOnly} and {@link #ignoring}: a call is recorded only if
+   * every one of them allows it.
+   */
+  public RecorderBuilder recordingMethods(Matcher<? super Method> methods) {
+    recordedMethods.add(methods);
+    return this;
+  }
+
+  /**
+   * Returns a recorder for {@code type}, as {@link Dupple#recorder(Class)}.
+   */
+  public <T> T of(Class<T> type) {
+    return new JmockDupplery().recordCalls(type, this);
+  }
+
+  /**
+   * Returns a recorder wrapped around {@code target}, as
+   * {@link Dupple#recorder(Object)}. A double made by another framework is
+   * recorded by a new Dupplery of Dupple's own.
+   */
+  public <T> T around(T target) {
+    Dupplery creator = ImposterizationRememberer.Util.creatorOrNull(target);
+    if (!(creator instanceof RecordingDupplery)) {
+      creator = new JmockDupplery();
+    }
+    return ((RecordingDupplery) creator).recordCalls(target, this);
+  }
+
+  /**
+   * Returns what a recorder for {@code target}, writing to {@code log}, should
+   * do with each call.
+   */
+  CallRecorder callRecorder(InvocationLog log, Object target) {
+    return log.recorderFor(target, samplerFor(log), methodFilter(),
+        trackingConcurrency);
+  }
+
+  private CallSampler samplerFor(InvocationLog log) {
+    if (perMethod > 0) {
+      return log.newReservoir(perMethod);
+    }
+    if (oneIn > 1) {
+      return new EveryNthSampler(oneIn);
+    }
+    return null;
+  }
+
+  private MethodFilter methodFilter() {
+    if (recordedMethods.isEmpty()) {
+      return null;
+    }
+    return new MethodFilter(new ArrayList<Matcher<? super Method>>(
+        recordedMethods));
+  }
+
+  void applyTo(InvocationLog log) {
+    if (stripedByThread) {
+      log.stripeByThread();
+    }
+    if (evictingVerified) {
+      log.evictVerified();
+    }
+    if (collapsingRepeats) {
+      log.collapseRepeats();
+    }
+  }
+}
@@ -0,0 +1,215 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import net.sf.cglib.core.CodeGenerationException;
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.CallbackFilter;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
+import net.sf.cglib.proxy.InvocationHandler;
+import net.sf.cglib.proxy.NoOp;
+import org.jmock.internal.SearchingClassLoader;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Generates, once per recorded type, a proxy class whose methods hand their
+ * arguments straight to a {@link CallRecorder}. Unlike an imposter from
+ * {@link ClassImposteriser}, a call builds no jMock {@code Invocation} and
+ * goes through no {@code Invokable} chain: the argument array created by the
+ * generated method is the only allocation, and it becomes the recorded
+ * snapshot. A proxy class generated at build time (see
+ * {@link PregenerateProxies}) works the same way, and is used if there is one.
+ *
+ * A generated class refers to the loaders of every class it proxies, so it
+ * is cached, with the objenesis instantiator for it, alongside whichever of
+ * them has the loader that can see all the others, in a {@link ClassValue},
+ * and goes away with that class. A type whose classes come from unrelated
+ * loaders is not cached at all, and objenesis is told not to cache, so that
+ * no loader is ever kept alive for longer than its own classes.
+ *
+ * @author Google
+ */
+class RecorderProxies {
+  static final RecorderProxies INSTANCE = new RecorderProxies();
+
+  private static final CallbackFilter IGNORE_BRIDGE_METHODS =
+      new CallbackFilter() {
+        @Override
+        public int accept(Method method) {
+          return method.isBridge() ? 1 : 0;
+        }
+      };
+
+  // for each owner (see owner()): each list of classes proxied together,
+  // to an instantiator of the class generated for them
+  private final ClassValue<ConcurrentMap<List<Class<?>>, ObjectInstantiator>>
+      instantiators =
+          new ClassValue<ConcurrentMap<List<Class<?>>, ObjectInstantiator>>() {
+            @Override
+            protected ConcurrentMap<List<Class<?>>, ObjectInstantiator>
+                computeValue(Class<?> type) {
+              return new ConcurrentHashMap<List<Class<?>>,
+                  ObjectInstantiator>();
+            }
+          };
+  private final Objenesis objenesis = new ObjenesisStd(false);
+
+  private RecorderProxies() {
+    // use INSTANCE
+  }
+
+  /**
+   * Returns a recorder of type {@code type} that also implements
+   * {@code interfaces}, or null if no specialized proxy can be generated for
+   * it, in which case the caller should fall back on {@link ClassImposteriser}.
+   */
+  Object recorder(Class<?> type, Class<?>[] interfaces,
+      final CallRecorder recorder) {
+    Class<?>[] proxied =
+        PregeneratedImposteriser.interfacesOf(type, interfaces);
+    if (proxied != null) {
+      Object pregenerated = PregeneratedProxies.INSTANCE.newProxy(proxied,
+          new PregeneratedProxy.Handler() {
+            @Override
+            public Object handle(Object proxy, Method method,
+                Object[] arguments) throws Throwable {
+              return recorder.call(proxy, method, arguments);
+            }
+          });
+      if (pregenerated != null) {
+        return pregenerated;
+      }
+    }
+    ObjectInstantiator instantiator = instantiator(type, interfaces);
+    if (instantiator == null) {
+      return null;
+    }
+    Factory proxy = (Factory) instantiator.newInstance();
+    proxy.setCallbacks(new Callback[] {new InvocationHandler() {
+      @Override
+      public Object invoke(Object invokedObject, Method method, Object[] args)
+          throws Throwable {
+        return recorder.call(invokedObject, method, args);
+      }
+    }, NoOp.INSTANCE});
+    return proxy;
+  }
+
+  private ObjectInstantiator instantiator(Class<?> type,
+      Class<?>[] interfaces) {
+    if (type == Object.class && interfaces.length == 0) {
+      return null; // cglib cannot subclass Object alone
+    }
+    if (!ClassImposteriser.INSTANCE.canImposterise(type)) {
+      return null;
+    }
+    Class<?> owner = owner(type, interfaces);
+    if (owner == null) {
+      return generate(type, interfaces);
+    }
+    ConcurrentMap<List<Class<?>>, ObjectInstantiator> generated =
+        instantiators.get(owner);
+    List<Class<?>> key = key(type, interfaces);
+    ObjectInstantiator instantiator = generated.get(key);
+    if (instantiator == null) {
+      instantiator = generate(type, interfaces);
+      if (instantiator == null) {
+        return null;
+      }
+      ObjectInstantiator raced = generated.putIfAbsent(key, instantiator);
+      if (raced != null) {
+        instantiator = raced;
+      }
+    }
+    return instantiator;
+  }
+
+  /**
+   * Returns whichever of {@code type} and {@code interfaces} has the class
+   * loader that the others' loaders are all ancestors of (or the same as), or
+   * null if their loaders are unrelated.
+   */
+  static Class<?> owner(Class<?> type, Class<?>[] interfaces) {
+    Class<?> owner = type;
+    for (Class<?> each : interfaces) {
+      if (isAncestor(owner.getClassLoader(), each.getClassLoader())) {
+        owner = each;
+      } else if (!isAncestor(each.getClassLoader(), owner.getClassLoader())) {
+        return null;
+      }
+    }
+    return owner;
+  }
+
+  /**
+   * Returns whether {@code ancestor}, where null is the bootstrap loader, is
+   * {@code loader} or one of its parents.
+   */
+  private static boolean isAncestor(ClassLoader ancestor,
+      ClassLoader loader) {
+    if (ancestor == null) {
+      return true;
+    }
+    for (ClassLoader each = loader; each != null; each = each.getParent()) {
+      if (each == ancestor) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private List<Class<?>> key(Class<?> type, Class<?>[] interfaces) {
+    Class<?>[] key = new Class<?>[interfaces.length + 1];
+    key[0] = type;
+    System.arraycopy(interfaces, 0, key, 1, interfaces.length);
+    return Arrays.asList(key);
+  }
+
+  private ObjectInstantiator generate(Class<?> type, Class<?>[] interfaces) {
+    Enhancer enhancer = new Enhancer() {
+      // cglib declares this with raw types, which an override must repeat
+      @Override
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      protected void filterConstructors(Class superclass, List constructors) {
+        // objenesis never calls a constructor, so all of them will do
+      }
+    };
+    enhancer.setClassLoader(SearchingClassLoader.combineLoadersOf(type,
+        interfaces));
+    enhancer.setUseFactory(true);
+    enhancer.setSuperclass(type);
+    enhancer.setInterfaces(interfaces);
+    enhancer.setCallbackTypes(new Class<?>[] {InvocationHandler.class,
+        NoOp.class});
+    enhancer.setCallbackFilter(IGNORE_BRIDGE_METHODS);
+    try {
+      return objenesis.getInstantiatorOf(enhancer.createClass());
+    } catch (CodeGenerationException e) {
+      return null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The operations Dupple's own duppleries support beyond {@link Dupplery}:
+ * waiting, ordering and checkpoints in assertions, queries over recorded
+ * calls, and configured recorders. Kept out of {@link Dupplery}, so that
+ * other frameworks can still implement it and {@link Dupple#register} their
+ * doubles; Dupple methods that need these throw
+ * {@link UnsupportedOperationException} for such doubles.
+ *
+ * @author Google
+ */
+interface RecordingDupplery extends Dupplery {
+  /**
+   * Returns a proxy that builds an assertion, as {@link #assertCalled} or
+   * {@link #assertNotCalled}, except that it waits up to {@code timeout} for
+   * a matching call to be recorded. It returns as soon as one is.
+   */
+  <T> T assertCalledWithin(T target, long timeout, TimeUnit unit,
+      boolean shouldHaveCalled);
+
+  /**
+   * Returns a proxy that builds an assertion: each method invoked against it
+   * must match a call recorded after the call matched by the one before. If
+   * {@code withinThread}, all the matched calls must also have been made by
+   * one thread.
+   */
+  <T> T assertInOrder(T target, boolean withinThread);
+
+  /**
+   * Returns a checkpoint in the calls recorded by this dupplery. Calls
+   * recorded after this returns are "since" the checkpoint.
+   */
+  long checkpoint();
+
+  /**
+   * Returns a proxy that builds an assertion, as {@link #assertCalled} or
+   * {@link #assertNotCalled}, but considering only calls recorded since
+   * {@code checkpoint}.
+   */
+  <T> T assertCalledSince(long checkpoint, T target, boolean shouldHaveCalled);
+
+  /**
+   * As {@link #assertNoOtherCalls(Object)}, but considering only calls
+   * recorded since {@code checkpoint}.
+   */
+  void assertNoOtherCallsSince(long checkpoint, Object target);
+
+  /**
+   * Returns a lazy stream of the calls recorded against targets created by
+   * this dupplery, in the order recorded, or of just the calls to
+   * {@code method} if it is not null.
+   */
+  Stream<RecordedCall> getCalls(Method method);
+
+  /**
+   * Returns the number of calls made to each method of recorders created by
+   * this dupplery. Counts are exact even where a sampling recorder kept only
+   * some of the calls.
+   */
+  Map<Method, Long> getCallCounts();
+
+  /**
+   * Returns how calls to {@code recorder}, created by this dupplery with
+   * {@link RecorderBuilder#trackingConcurrency()}, have overlapped.
+   */
+  ConcurrencyReport getConcurrency(Object recorder);
+
+  /**
+   * Returns a recorder wrapped around {@code target}, configured by
+   * {@code options}.
+   */
+  <T> T recordCalls(T target, RecorderBuilder options);
+}
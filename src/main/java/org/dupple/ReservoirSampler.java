@@ -0,0 +1,140 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.jmock.api.Invocation;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a uniform random sample of a fixed number of calls to each method
+ * (reservoir sampling), however many calls are made. Sampled calls are kept
+ * here rather than in the log's buffers, because a later call may displace
+ * one; the log reads them with {@link #addTo(List)}, and counts on
+ * {@link #changes()} to tell it when to read them again.
+ *
+ * @author Google
+ */
+class ReservoirSampler implements CallSampler {
+  private final int size;
+  private final ConcurrentMap<Method, Reservoir> reservoirs =
+      new ConcurrentHashMap<Method, Reservoir>();
+  private final AtomicLong changes = new AtomicLong();
+
+  ReservoirSampler(int size) {
+    this.size = size;
+  }
+
+  @Override
+  public boolean offer(MethodTable.Entry entry, Object invokedObject,
+      Object[] argumentSnapshot, long sequence) {
+    Reservoir reservoir = reservoirFor(entry.method);
+    long seen = reservoir.seen.getAndIncrement();
+    long slot =
+        seen < size ? seen : ThreadLocalRandom.current().nextLong(seen + 1);
+    if (slot < size) {
+      Thread caller = Thread.currentThread();
+      reservoir.slots.set((int) slot, new DuppleInvocation(new Invocation(
+          invokedObject, entry.method, argumentSnapshot), sequence,
+          caller.getId(), caller.getName()));
+      changes.incrementAndGet();
+    }
+    return false;
+  }
+
+  /**
+   * Adds every call currently in the sample to {@code invocations}.
+   */
+  void addTo(List<DuppleInvocation> invocations) {
+    for (Reservoir each : reservoirs.values()) {
+      for (int i = 0; i < size; i++) {
+        DuppleInvocation sampled = each.slots.get(i);
+        if (sampled != null) {
+          invocations.add(sampled);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds every call to {@code method} currently in the sample to
+   * {@code invocations}.
+   */
+  void addTo(List<DuppleInvocation> invocations, Method method) {
+    Reservoir reservoir = reservoirs.get(method);
+    if (reservoir == null) {
+      return;
+    }
+    for (int i = 0; i < size; i++) {
+      DuppleInvocation sampled = reservoir.slots.get(i);
+      if (sampled != null) {
+        invocations.add(sampled);
+      }
+    }
+  }
+
+  /**
+   * Returns a number that changes whenever the sample does.
+   */
+  long changes() {
+    return changes.get();
+  }
+
+  /**
+   * Drops verified calls from the sample, for a log that evicts them, and
+   * returns how many were dropped. A slot emptied this way is filled again
+   * only if a later call happens to be sampled into it.
+   */
+  long removeVerified() {
+    long removed = 0;
+    for (Reservoir each : reservoirs.values()) {
+      for (int i = 0; i < size; i++) {
+        DuppleInvocation sampled = each.slots.get(i);
+        if (sampled != null && sampled.isVerified()
+            && each.slots.compareAndSet(i, sampled, null)) {
+          removed++;
+        }
+      }
+    }
+    if (removed > 0) {
+      changes.incrementAndGet();
+    }
+    return removed;
+  }
+
+  private Reservoir reservoirFor(Method method) {
+    Reservoir reservoir = reservoirs.get(method);
+    if (reservoir == null) {
+      reservoirs.putIfAbsent(method, new Reservoir(size));
+      reservoir = reservoirs.get(method);
+    }
+    return reservoir;
+  }
+
+  private static class Reservoir {
+    final AtomicLong seen = new AtomicLong();
+    final AtomicReferenceArray<DuppleInvocation> slots;
+
+    Reservoir(int size) {
+      slots = new AtomicReferenceArray<DuppleInvocation>(size);
+    }
+  }
+}
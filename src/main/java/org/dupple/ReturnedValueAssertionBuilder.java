@@ -19,7 +19,6 @@ import org.hamcrest.Matcher;
 import org.hamcrest.StringDescription;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
-import org.jmock.internal.ReturnDefaultValueAction;
 
 /**
  * Remembers a desired property of an value that is expected to be returned from
@@ -67,7 +66,7 @@ public class ReturnedValueAssertionBuilder {
           firstInvocation = false;
           checkReturn(target, invocation, returned);
         }
-        return new ReturnDefaultValueAction().invoke(invocation);
+        return DefaultValueAction.INSTANCE.invoke(invocation);
       }
     });
   }
@@ -0,0 +1,73 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.hamcrest.Description;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Returns the same default value from every call to a given method, so that
+ * code calling a permissive stub's getter in a loop does not imposterize a new
+ * double on each call. That includes getters of collections and maps: their
+ * defaults are doubles too, whose every call returns a default in turn, so
+ * they hold no state that callers could share by accident. Only a real
+ * collection or map, which callers may fill, would be returned fresh.
+ *
+ * @author Google
+ */
+class SharedDefaultValueAction implements Action {
+  private final Action defaults;
+  private final ConcurrentMap<Method, Object> shared =
+      new ConcurrentHashMap<Method, Object>();
+
+  SharedDefaultValueAction(Action defaults) {
+    this.defaults = defaults;
+  }
+
+  @Override
+  public Object invoke(Invocation invocation) throws Throwable {
+    Method method = invocation.getInvokedMethod();
+    Object result = shared.get(method);
+    if (result != null) {
+      return result;
+    }
+    result = defaults.invoke(invocation);
+    if (!isShareable(result)) {
+      return result;
+    }
+    Object earlier = shared.putIfAbsent(method, result);
+    return earlier != null ? earlier : result;
+  }
+
+  private boolean isShareable(Object result) {
+    if (result instanceof Collection || result instanceof Map) {
+      return ExactInvocationExpectation.isDouble(result);
+    }
+    return result != null;
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    defaults.describeTo(description);
+    description.appendText(", shared between calls");
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An {@link InvocationBuffer} that all recording threads share. A thread
+ * claims a slot in the current segment with one atomic increment and writes
+ * into it; nothing on the recording path blocks, and a new segment is only
+ * allocated once every {@value #SEGMENT_SIZE} calls.
+ *
+ * @author Google
+ */
+class SharedInvocationBuffer implements InvocationBuffer {
+  private static final int SEGMENT_SIZE = 1024;
+
+  private final AtomicReference<Segment> tail =
+      new AtomicReference<Segment>(new Segment());
+  private Segment head = tail.get(); // reader-owned
+  private int headIndex = 0;
+
+  @Override
+  public void add(Object invokedObject, int methodId,
+      Object[] argumentSnapshot, long sequence, Thread caller) {
+    Segment segment = tail.get();
+    while (true) {
+      int index = segment.claimed.getAndIncrement();
+      if (index < SEGMENT_SIZE) {
+        segment.slots.set(index, invokedObject, methodId, argumentSnapshot,
+            sequence, caller);
+        // a full volatile write, not lazySet: a waiting reader counts on
+        // seeing either this or the signal sent after it
+        segment.written.set(index, 1);
+        return;
+      }
+      segment = nextAfter(segment);
+    }
+  }
+
+  private Segment nextAfter(Segment full) {
+    Segment next = full.next.get();
+    if (next == null) {
+      full.next.compareAndSet(null, new Segment());
+      next = full.next.get();
+    }
+    tail.compareAndSet(full, next);
+    return next;
+  }
+
+  @Override
+  public void drainTo(List<DuppleInvocation> batch, MethodTable methods) {
+    while (true) {
+      for (; headIndex < SEGMENT_SIZE; headIndex++) {
+        if (head.written.get(headIndex) == 0) {
+          // not claimed yet, or its writer has not finished: try next time
+          return;
+        }
+        head.slots.moveTo(batch, headIndex, methods);
+      }
+      Segment next = head.next.get();
+      if (next == null) {
+        return;
+      }
+      head = next;
+      headIndex = 0;
+    }
+  }
+
+  private static class Segment {
+    final InvocationChunk slots = new InvocationChunk(SEGMENT_SIZE);
+    final AtomicInteger claimed = new AtomicInteger();
+    final AtomicIntegerArray written = new AtomicIntegerArray(SEGMENT_SIZE);
+    final AtomicReference<Segment> next = new AtomicReference<Segment>();
+  }
+}
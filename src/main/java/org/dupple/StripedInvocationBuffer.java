@@ -0,0 +1,147 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An {@link InvocationBuffer} with one buffer per recording thread, so that
+ * threads calling the same recorder never write to shared memory.
+ *
+ * Each thread's buffer has exactly one writer (its thread) and one reader
+ * (whoever is draining). Chunks start small and double up to a limit, so that
+ * the many short-lived buffers left by virtual threads stay cheap. Once a
+ * thread has terminated, its buffer is drained one last time and dropped, so
+ * that memory and draining cost follow the threads still alive rather than
+ * every thread that ever recorded.
+ *
+ * A thread finds its own buffer through a thread-local that holds it only
+ * weakly; the list of buffers holds it strongly. A pooled thread outlives
+ * many logs, and a thread-local's value stays in the thread until the thread
+ * next happens to clear stale entries, so a strong one would keep a
+ * discarded log's calls, and their arguments, alive for as long as the pool.
+ * This way a discarded log leaves behind only an empty reference per thread.
+ *
+ * @author Google
+ */
+class StripedInvocationBuffer implements InvocationBuffer {
+  private static final int FIRST_CHUNK_SIZE = 8;
+  private static final int MAX_CHUNK_SIZE = 256;
+
+  private final Queue<Stripe> stripes = new ConcurrentLinkedQueue<Stripe>();
+
+  private final ThreadLocal<WeakReference<Stripe>> localStripe =
+      new ThreadLocal<WeakReference<Stripe>>() {
+        @Override
+        protected WeakReference<Stripe> initialValue() {
+          Stripe stripe = new Stripe(Thread.currentThread());
+          stripes.add(stripe);
+          return new WeakReference<Stripe>(stripe);
+        }
+      };
+
+  @Override
+  public void add(Object invokedObject, int methodId,
+      Object[] argumentSnapshot, long sequence, Thread caller) {
+    // never cleared while this buffer is in use: a stripe leaves stripes
+    // only once its thread has finished
+    localStripe.get().get().add(invokedObject, methodId, argumentSnapshot,
+        sequence, caller);
+  }
+
+  @Override
+  public void drainTo(List<DuppleInvocation> batch, MethodTable methods) {
+    Iterator<Stripe> each = stripes.iterator();
+    while (each.hasNext()) {
+      Stripe stripe = each.next();
+      // checked first: a thread's termination happens-before isAlive()
+      // returns false, so the drain that follows sees all its writes
+      boolean finished = stripe.ownerFinished();
+      stripe.drainTo(batch, methods);
+      if (finished) {
+        each.remove();
+      }
+    }
+  }
+
+  /**
+   * Returns how many threads' buffers are held.
+   */
+  int stripeCount() {
+    return stripes.size();
+  }
+
+  /**
+   * One thread's invocations, in a linked list of chunks.
+   */
+  private static class Stripe {
+    private final WeakReference<Thread> owner;
+    private Chunk head = new Chunk(FIRST_CHUNK_SIZE); // reader-owned
+    private int headIndex = 0;
+    private Chunk tail = head; // writer-owned
+
+    Stripe(Thread owner) {
+      this.owner = new WeakReference<Thread>(owner);
+    }
+
+    boolean ownerFinished() {
+      Thread thread = owner.get();
+      return thread == null || !thread.isAlive();
+    }
+
+    void add(Object invokedObject, int methodId, Object[] argumentSnapshot,
+        long sequence, Thread caller) {
+      if (tail.published == tail.slots.size()) {
+        Chunk next = new Chunk(Math.min(tail.slots.size() * 2,
+            MAX_CHUNK_SIZE));
+        tail.next = next;
+        tail = next;
+      }
+      int index = tail.published;
+      tail.slots.set(index, invokedObject, methodId, argumentSnapshot,
+          sequence, caller);
+      tail.published = index + 1;
+    }
+
+    void drainTo(List<DuppleInvocation> batch, MethodTable methods) {
+      while (true) {
+        int published = head.published;
+        for (; headIndex < published; headIndex++) {
+          head.slots.moveTo(batch, headIndex, methods);
+        }
+        Chunk next = head.next;
+        if (headIndex < head.slots.size() || next == null) {
+          return;
+        }
+        head = next;
+        headIndex = 0;
+      }
+    }
+  }
+
+  private static class Chunk {
+    final InvocationChunk slots;
+    volatile int published = 0;
+    volatile Chunk next = null;
+
+    Chunk(int size) {
+      slots = new InvocationChunk(size);
+    }
+  }
+}
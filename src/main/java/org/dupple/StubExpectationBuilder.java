@@ -18,11 +18,10 @@ package org.dupple;
 import static org.hamcrest.CoreMatchers.anything;
 
 import org.jmock.api.Action;
+import org.jmock.api.Expectation;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
 import org.jmock.internal.InvocationExpectation;
-import org.jmock.internal.ReturnDefaultValueAction;
-import org.jmock.lib.legacy.ClassImposteriser;
 
 /**
  * Builds expectations for calls to a Dupple stub. Internal class, used only in
@@ -63,7 +62,18 @@ public class StubExpectationBuilder {
   }
 
   private InvocationExpectation anyCallExpectation() {
-    InvocationExpectation expectation = new InvocationExpectation();
+    InvocationExpectation expectation = new InvocationExpectation() {
+      @Override
+      public boolean allowsMoreInvocations() {
+        return super.allowsMoreInvocations()
+            && AnswerSequence.canAnswer(action);
+      }
+
+      @Override
+      public boolean matches(Invocation invocation) {
+        return super.matches(invocation) && AnswerSequence.canAnswer(action);
+      }
+    };
     expectation.setObjectMatcher(anything());
     expectation.setAction(action);
     return expectation;
@@ -78,7 +88,7 @@ public class StubExpectationBuilder {
     return this;
   }
 
-  private void addExpectation(Object target, InvocationExpectation expectation) {
+  private void addExpectation(Object target, Expectation expectation) {
     Dupplery dupplery = ImposterizationRememberer.Util.creator(target);
     if (lowPriority) {
       dupplery.addLowPriorityExpectation(expectation);
@@ -88,15 +98,13 @@ public class StubExpectationBuilder {
   }
 
   private <U> Object objectForFrom(final U target) {
-    return ClassImposteriser.INSTANCE.imposterise(new Invokable() {
+    return PregeneratedImposteriser.INSTANCE.imposterise(new Invokable() {
       @Override
       public Object invoke(Invocation invocation) throws Throwable {
-        InvocationExpectation builder =
-            InvocationMatchingRuleset.newExactMatch().expectMatchOf(invocation);
-        builder.setAction(action);
-        addExpectation(target, builder);
-        return new ReturnDefaultValueAction().invoke(invocation);
+        addExpectation(target, new ExactInvocationExpectation(invocation,
+            action));
+        return DefaultValueAction.INSTANCE.invoke(invocation);
       }
-    }, ((ImposterizationRememberer) target).getImposterizedClass());
+    }, ImposterizationRememberer.Util.imposterizedClass(target));
   }
 }
@@ -0,0 +1,235 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import junit.framework.AssertionFailedError;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Remembers rows of arguments and the values that calls with them are
+ * expected to return, to check against one method of a target.
+ *
+ * This is an internal class, used only in builders for table-driven
+ * returned-value assertions. See {@link Dupple#assertReturnedFor(Iterable)}
+ * for example use.
+ *
+ * @author Google
+ */
+public class TableAssertionBuilder {
+  private static final int ROWS_PER_TASK = 64;
+  private static final int MISMATCHES_SHOWN = 20;
+
+  private static final Comparator<Mismatch> BY_ROW =
+      new Comparator<Mismatch>() {
+        @Override
+        public int compare(Mismatch a, Mismatch b) {
+          return Integer.compare(a.row, b.row);
+        }
+      };
+
+  private final Iterable<Object[]> rows;
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /**
+   * Constructs a {@link TableAssertionBuilder} that will check
+   * {@code rows}, each holding the arguments of a call followed by the value
+   * it should return, or a {@link Matcher} for that value.
+   */
+  protected TableAssertionBuilder(Iterable<Object[]> rows) {
+    this.rows = rows;
+  }
+
+  /**
+   * Checks rows on {@code pool}, rather than the common fork-join pool. A
+   * pool of parallelism 1 checks them one at a time.
+   */
+  public TableAssertionBuilder onPool(ForkJoinPool pool) {
+    this.pool = pool;
+    return this;
+  }
+
+  /**
+   * Returns a wrapped return-value-asserting proxy for {@code target}. When
+   * the proxy receives a method call, it calls the same method on
+   * {@code target} with the arguments of each row, in parallel, and asserts
+   * that every call returned the row's value. One failure lists every row
+   * that did not, in row order. The arguments of the quoted call are
+   * ignored: it only names the method.
+   *
+   * Example usage:
+   *
+   * <pre>
+   * assertReturnedFor(rowsOf(fixtureFile)).from(calculator).add(0, 0);
+   * </pre>
+   */
+  public <T> T from(final T target) {
+    return new JmockDupplery().imposterize(target, new Invokable() {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        Method method = invocation.getInvokedMethod();
+        List<Object[]> table = readRows(method);
+        Queue<Mismatch> mismatches = new ConcurrentLinkedQueue<Mismatch>();
+        pool.invoke(new CheckRows(target, method, table, 0, table.size(),
+            mismatches));
+        checkMismatches(target, method, table.size(), mismatches);
+        return DefaultValueAction.INSTANCE.invoke(invocation);
+      }
+    });
+  }
+
+  private List<Object[]> readRows(Method method) {
+    int arity = method.getParameterTypes().length;
+    List<Object[]> table = new ArrayList<Object[]>();
+    for (Iterator<Object[]> it = rows.iterator(); it.hasNext();) {
+      Object[] row = it.next();
+      if (row.length != arity + 1) {
+        throw new IllegalArgumentException("Expected " + arity
+            + " arguments and a result for " + method.getName() + ", got "
+            + Arrays.asList(row));
+      }
+      table.add(row);
+    }
+    return table;
+  }
+
+  private void checkMismatches(Object target, Method method, int rowCount,
+      Queue<Mismatch> mismatches) {
+    if (mismatches.isEmpty()) {
+      return;
+    }
+    List<Mismatch> sorted = new ArrayList<Mismatch>(mismatches);
+    Collections.sort(sorted, BY_ROW);
+    StringBuilder report = new StringBuilder("When calling " + target + "."
+        + method.getName() + " with " + rowCount + " rows, " + sorted.size()
+        + " did not return as expected:");
+    for (Mismatch each : sorted.subList(0,
+        Math.min(sorted.size(), MISMATCHES_SHOWN))) {
+      report.append("\n  ").append(each);
+    }
+    if (sorted.size() > MISMATCHES_SHOWN) {
+      report.append("\n  (and ").append(sorted.size() - MISMATCHES_SHOWN)
+          .append(" more)");
+    }
+    throw new AssertionFailedError(report.toString());
+  }
+
+  /**
+   * Checks rows {@code from} (inclusive) to {@code to} (exclusive), splitting
+   * them among tasks while there are more than {@link #ROWS_PER_TASK}.
+   */
+  private static class CheckRows extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Object target;
+    private final Method method;
+    private final List<Object[]> table;
+    private final int from;
+    private final int to;
+    private final Queue<Mismatch> mismatches;
+
+    CheckRows(Object target, Method method, List<Object[]> table, int from,
+        int to, Queue<Mismatch> mismatches) {
+      this.target = target;
+      this.method = method;
+      this.table = table;
+      this.from = from;
+      this.to = to;
+      this.mismatches = mismatches;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > ROWS_PER_TASK) {
+        int middle = (from + to) >>> 1;
+        invokeAll(
+            new CheckRows(target, method, table, from, middle, mismatches),
+            new CheckRows(target, method, table, middle, to, mismatches));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        check(i, table.get(i));
+      }
+    }
+
+    private void check(int index, Object[] row) {
+      Object[] arguments = Arrays.copyOf(row, row.length - 1);
+      Object expected = row[row.length - 1];
+      Object returned;
+      try {
+        returned = method.invoke(target, arguments);
+      } catch (InvocationTargetException e) {
+        mismatches.add(new Mismatch(index, method, arguments, expected,
+            "threw " + e.getTargetException()));
+        return;
+      } catch (Exception e) {
+        mismatches.add(new Mismatch(index, method, arguments, expected,
+            "could not be called: " + e));
+        return;
+      }
+      if (!matches(expected, returned)) {
+        mismatches.add(new Mismatch(index, method, arguments, expected,
+            "got " + returned));
+      }
+    }
+
+    private static boolean matches(Object expected, Object returned) {
+      if (expected instanceof Matcher) {
+        return ((Matcher<?>) expected).matches(returned);
+      }
+      return Objects.deepEquals(expected, returned);
+    }
+  }
+
+  /**
+   * A row whose call did not return as expected.
+   */
+  private static class Mismatch {
+    final int row;
+    private final String description;
+
+    Mismatch(int row, Method method, Object[] arguments, Object expected,
+        String actual) {
+      this.row = row;
+      String wanted = expected instanceof Matcher
+          ? StringDescription.toString((Matcher<?>) expected)
+          : String.valueOf(expected);
+      this.description = "row " + row + ": " + method.getName() + "("
+          + Join.join(", ", arguments) + "), Expected: " + wanted + " but "
+          + actual;
+    }
+
+    @Override
+    public String toString() {
+      return description;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.hamcrest.Description;
+import org.jmock.api.Expectation;
+import org.jmock.api.Invocation;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An expectation that answers calls to one method by looking up their
+ * arguments in a table, as built by
+ * {@code Dupple.willReturnFrom(table).from(stub).method(..)}. However many
+ * rows the table has, it is one expectation, and matching a call is one hash
+ * lookup.
+ *
+ * A call to a method with exactly one parameter is looked up by its argument;
+ * any other call is looked up by the list of its arguments. Calls whose
+ * arguments are not in the table are left to other expectations. A null
+ * answer is held in the table as {@link #NULL}, so that one lookup tells a
+ * missing row from a row answering null.
+ *
+ * @author Google
+ */
+class TableExpectation implements Expectation {
+  /**
+   * Stands for a null answer in a table.
+   */
+  static final Object NULL = new Object();
+
+  private final Method method;
+  private final Map<?, ?> answers;
+
+  TableExpectation(Method method, Map<?, ?> answers) {
+    this.method = method;
+    this.answers = answers;
+  }
+
+  /**
+   * Returns the table key for a call with {@code arguments}.
+   */
+  static Object keyOf(Object[] arguments) {
+    if (arguments.length == 1) {
+      return arguments[0];
+    }
+    return Arrays.asList(arguments);
+  }
+
+  @Override
+  public boolean allowsMoreInvocations() {
+    return true;
+  }
+
+  @Override
+  public boolean isSatisfied() {
+    return true;
+  }
+
+  /**
+   * Returns the answer to {@code invocation}, {@link #NULL} for null, or null
+   * if it has no row. A lone argument is looked up without copying the
+   * arguments.
+   */
+  private Object answerTo(Invocation invocation) {
+    if (invocation.getParameterCount() == 1) {
+      return answers.get(invocation.getParameter(0));
+    }
+    return answers.get(keyOf(invocation.getParametersAsArray()));
+  }
+
+  @Override
+  public boolean matches(Invocation invocation) {
+    return method.equals(invocation.getInvokedMethod())
+        && answerTo(invocation) != null;
+  }
+
+  @Override
+  public Object invoke(Invocation invocation) throws Throwable {
+    Object answer = answerTo(invocation);
+    return answer == NULL ? null : answer;
+  }
+
+  @Override
+  public void describeTo(Description description) {
+    description.appendText(method.getName() + "(..) answered from a table of "
+        + answers.size() + " rows");
+  }
+}
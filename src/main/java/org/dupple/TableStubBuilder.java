@@ -0,0 +1,109 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Builds a table of answers for one method of a Dupple stub. Internal class,
+ * used only in builder expressions. For example:
+ *
+ * <pre>
+ * Dupple.willReturnFrom(pricesBySku).from(catalog).priceOf(null);
+ * </pre>
+ *
+ * The arguments of the quoted call are ignored: it only names the method.
+ *
+ * @author Google
+ */
+public class TableStubBuilder {
+  private final Map<?, ?> answers;
+  private final Iterable<Object[]> rows;
+
+  TableStubBuilder(Map<?, ?> answers) {
+    this.answers = answers;
+    this.rows = null;
+  }
+
+  TableStubBuilder(Iterable<Object[]> rows) {
+    this.answers = null;
+    this.rows = rows;
+  }
+
+  /**
+   * Returns an imposter for {@code target}. The method next called on it is
+   * answered from the table, for every call whose arguments are in the table.
+   */
+  @SuppressWarnings("unchecked")
+  public <U> U from(final U target) {
+    return (U) PregeneratedImposteriser.INSTANCE.imposterise(new Invokable() {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        Method method = invocation.getInvokedMethod();
+        ImposterizationRememberer.Util.creator(target).addNormalExpectation(
+            new TableExpectation(method, tableFor(method)));
+        return DefaultValueAction.INSTANCE.invoke(invocation);
+      }
+    }, ImposterizationRememberer.Util.imposterizedClass(target));
+  }
+
+  private Map<?, ?> tableFor(Method method) {
+    Map<Object, Object> table = new HashMap<Object, Object>();
+    if (answers != null) {
+      for (Map.Entry<?, ?> each : answers.entrySet()) {
+        put(table, method, each.getKey(), each.getValue());
+      }
+      return table;
+    }
+    int arity = method.getParameterTypes().length;
+    for (Iterator<Object[]> it = rows.iterator(); it.hasNext();) {
+      Object[] row = it.next();
+      if (row.length != arity + 1) {
+        throw new IllegalArgumentException("Expected " + arity
+            + " arguments and a result for " + method.getName() + ", got "
+            + Arrays.asList(row));
+      }
+      put(table, method, TableExpectation.keyOf(Arrays.copyOf(row, arity)),
+          row[arity]);
+    }
+    return table;
+  }
+
+  /**
+   * Adds a row to {@code table}, holding a null result as
+   * {@link TableExpectation#NULL}. A method returning a primitive cannot
+   * answer null, so that is rejected here rather than when the stub is
+   * called.
+   */
+  private static void put(Map<Object, Object> table, Method method,
+      Object key, Object result) {
+    if (result == null) {
+      if (method.getReturnType().isPrimitive()) {
+        throw new IllegalArgumentException("Null result for "
+            + method.getName() + "(" + key + "), which returns "
+            + method.getReturnType());
+      }
+      result = TableExpectation.NULL;
+    }
+    table.put(key, result);
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rate of calls that a target must keep up, for
+ * {@link Dupple#assertThroughput(Throughput)}.
+ *
+ * @author Google
+ */
+public class Throughput {
+  private final double calls;
+  private final TimeUnit per;
+
+  private Throughput(double calls, TimeUnit per) {
+    this.calls = calls;
+    this.per = per;
+  }
+
+  /**
+   * Returns a throughput of at least {@code calls} calls per {@code per}, such
+   * as {@code atLeast(10000, TimeUnit.SECONDS)}.
+   */
+  public static Throughput atLeast(double calls, TimeUnit per) {
+    if (!(calls > 0)) {
+      throw new IllegalArgumentException("Cannot expect " + calls
+          + " calls per " + per);
+    }
+    return new Throughput(calls, per);
+  }
+
+  boolean isMetBy(LoadRunner.Result result) {
+    return result.callsPer(per) >= calls;
+  }
+
+  /**
+   * Returns the throughput of {@code result}, in the units of this.
+   */
+  String describe(LoadRunner.Result result) {
+    return describe(result.callsPer(per));
+  }
+
+  private String describe(double rate) {
+    String perUnit = per.name().toLowerCase();
+    return Math.round(rate) + " calls/"
+        + perUnit.substring(0, perUnit.length() - 1);
+  }
+
+  @Override
+  public String toString() {
+    return "at least " + describe(calls);
+  }
+}
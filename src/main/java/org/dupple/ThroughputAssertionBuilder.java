@@ -0,0 +1,122 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import junit.framework.AssertionFailedError;
+import org.hamcrest.StringDescription;
+import org.jmock.api.Invocation;
+import org.jmock.api.Invokable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers a throughput that an upcoming method call is expected to keep
+ * up, and how to measure it.
+ *
+ * This is an internal class, used only in builders for throughput
+ * assertions. See {@link Dupple#assertThroughput(Throughput)} for example
+ * use.
+ *
+ * @author Google
+ */
+public class ThroughputAssertionBuilder {
+  private final Throughput expected;
+  private long warmUpNanos = TimeUnit.MILLISECONDS.toNanos(200);
+  private long runNanos = TimeUnit.SECONDS.toNanos(1);
+  private int threads = 1;
+
+  /**
+   * Constructs a {@link ThroughputAssertionBuilder} that will expect
+   * {@code expected}.
+   */
+  protected ThroughputAssertionBuilder(Throughput expected) {
+    this.expected = expected;
+  }
+
+  /**
+   * Calls the quoted call, unmeasured, for {@code time} before measuring.
+   * Defaults to 200ms.
+   */
+  public ThroughputAssertionBuilder warmingUpFor(long time, TimeUnit unit) {
+    if (time < 0) {
+      throw new IllegalArgumentException("Cannot warm up for " + time);
+    }
+    warmUpNanos = unit.toNanos(time);
+    return this;
+  }
+
+  /**
+   * Measures the quoted call for {@code time}. Defaults to 1 second.
+   */
+  public ThroughputAssertionBuilder runningFor(long time, TimeUnit unit) {
+    if (time <= 0) {
+      throw new IllegalArgumentException("Cannot run for " + time);
+    }
+    runNanos = unit.toNanos(time);
+    return this;
+  }
+
+  /**
+   * Makes the quoted call from {@code threads} threads at once, counting
+   * calls from all of them. Defaults to 1, the test's own thread.
+   */
+  public ThroughputAssertionBuilder onThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Cannot run on " + threads
+          + " threads");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Returns a wrapped throughput-asserting proxy for {@code target}. When the
+   * proxy receives a method call {@code invocation}, it makes the same call
+   * on {@code target} over and over for the configured time, and asserts
+   * that the calls kept up the expected throughput. If any call throws, the
+   * run stops and the proxy throws the same.
+   *
+   * Example usage:
+   *
+   * <pre>
+   * assertThroughput(atLeast(100000, SECONDS)).from(cache).get("key");
+   * </pre>
+   */
+  public <T> T from(final T target) {
+    return new JmockDupplery().imposterize(target, new Invokable() {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        LoadRunner.Result result =
+            new LoadRunner(threads, warmUpNanos, runNanos).run(invocation,
+                target);
+        checkThroughput(target, invocation, result);
+        return DefaultValueAction.INSTANCE.invoke(invocation);
+      }
+    });
+  }
+
+  private void checkThroughput(Object target, Invocation invocation,
+      LoadRunner.Result result) {
+    if (!expected.isMetBy(result)) {
+      // described against the target, as the proxy's toString is measured
+      Invocation onTarget = new Invocation(target,
+          invocation.getInvokedMethod(), invocation.getParametersAsArray());
+      throw new AssertionFailedError("When calling "
+          + StringDescription.toString(onTarget) + ", Expected: "
+          + expected + " but got " + expected.describe(result) + " ("
+          + result + ")");
+    }
+  }
+}
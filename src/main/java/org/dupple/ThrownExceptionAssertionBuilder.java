@@ -20,7 +20,6 @@ import junit.framework.AssertionFailedError;
 import org.hamcrest.Matcher;
 import org.jmock.api.Invocation;
 import org.jmock.api.Invokable;
-import org.jmock.internal.ReturnDefaultValueAction;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -72,7 +71,7 @@ public class ThrownExceptionAssertionBuilder {
           result = new DelegatingInvocation(invocation).redirectTo(target);
         } catch (RedirectionException t) {
           handleSomethingThrown(t.getCause());
-          return new ReturnDefaultValueAction().invoke(invocation);
+          return DefaultValueAction.INSTANCE.invoke(invocation);
         }
         handleNothingThrown();
         return result;
@@ -0,0 +1,38 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+/**
+ * What a stub answering from a sequence does once the sequence has run out.
+ * See {@link Dupple#willReturnEach(java.util.Iterator, WhenExhausted)}.
+ *
+ * @author Google
+ */
+public enum WhenExhausted {
+  /** Fail the call with an error. */
+  FAIL,
+
+  /** Keep returning the last value in the sequence. */
+  REPEAT_LAST,
+
+  /** Return a default value, as {@link Dupple#willReturnDefaultValue()}. */
+  RETURN_DEFAULT_VALUE,
+
+  /**
+   * Stop matching, so that later calls are answered by whichever expectation
+   * would have answered them had this one never been set.
+   */
+  FALL_THROUGH
+}
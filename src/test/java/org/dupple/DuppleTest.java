@@ -22,9 +22,21 @@ import static org.hamcrest.Matchers.containsString;
 import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 import org.hamcrest.Matchers;
+import org.jmock.api.Expectation;
 
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Tests the Dupple framework
@@ -44,6 +56,45 @@ public class DuppleTest extends TestCase {
     String getEval(String expression);
   }
 
+  /**
+   * An implementation that takes 5ms to evaluate anything
+   */
+  public static class SlowExample implements ExampleInterface {
+    @Override
+    public void keyPress(String locator, String key) {
+    }
+
+    @Override
+    public void answerOnNextPrompt(String answer) {
+    }
+
+    @Override
+    public String getEval(String expression) {
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return expression;
+    }
+  }
+
+  /**
+   * An interface whose method returns a double when stubbed
+   */
+  public interface ExampleFactory {
+    ExampleInterface newExample();
+  }
+
+  /**
+   * An interface whose methods return a collection and a map
+   */
+  public interface ExampleCatalog {
+    List<String> names();
+
+    Map<String, String> byName();
+  }
+
   public void testAssertCalledFailsIfQuotedCallWasNotObserved() {
     final ExampleInterface exi = Dupple.recorder(ExampleInterface.class);
     try {
@@ -203,6 +254,581 @@ public class DuppleTest extends TestCase {
     assertEquals("second", stub.getEval("a"));
   }
 
+  public void testManyExactExpectations() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+
+    for (int i = 0; i < 1000; i++) {
+      Dupple.willReturn("value" + i).from(stub).getEval("key" + i);
+    }
+    Dupple.willReturn("shadowed").from(stub).getEval("key7");
+    Dupple.willReturn("any").fromAnyCallTo(stub);
+    assertEquals("value7", stub.getEval("key7"));
+    assertEquals("value999", stub.getEval("key999"));
+    assertEquals("any", stub.getEval("missing"));
+  }
+
+  public void testExactExpectation_matchesMutatedArgumentAsJmockWould() {
+    @SuppressWarnings("unchecked")
+    List<List<String>> stub = Dupple.stub(List.class);
+    List<String> key = new ArrayList<String>(Arrays.asList("a"));
+
+    Dupple.willReturn(true).from(stub).contains(key);
+    Dupple.willReturn(false).withLowPriority().fromAnyCallTo(stub);
+    key.set(0, "b");
+    assertTrue(stub.contains(Arrays.asList("b")));
+    assertFalse(stub.contains(Arrays.asList("a")));
+  }
+
+  public void testWillReturnFromMap() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+    Map<String, String> answers = new HashMap<String, String>();
+    for (int i = 0; i < 1000; i++) {
+      answers.put("key" + i, "value" + i);
+    }
+
+    Dupple.willReturnFrom(answers).from(stub).getEval(null);
+    Dupple.willReturn("any").withLowPriority().fromAnyCallTo(stub);
+    assertEquals("value7", stub.getEval("key7"));
+    assertEquals("value999", stub.getEval("key999"));
+    assertEquals("any", stub.getEval("missing"));
+  }
+
+  public void testWillReturnFromRows() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] {"1+1", "2"});
+    rows.add(new Object[] {"2+2", "4"});
+
+    Dupple.willReturnFrom(rows).from(stub).getEval(null);
+    assertEquals("4", stub.getEval("2+2"));
+  }
+
+  public void testWillReturnFromRows_answersNull() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add(new Object[] {"1/0", null});
+
+    Dupple.willReturnFrom(rows).from(stub).getEval(null);
+    Dupple.willReturn("any").withLowPriority().fromAnyCallTo(stub);
+    assertNull(stub.getEval("1/0"));
+    assertEquals("any", stub.getEval("missing"));
+  }
+
+  public void testWillReturnFrom_rejectsNullForPrimitive() {
+    ReturnsInt stub = Dupple.stub(ReturnsInt.class);
+    Map<Object, Object> answers = new HashMap<Object, Object>();
+    answers.put(Arrays.asList(), null);
+
+    try {
+      Dupple.willReturnFrom(answers).from(stub).getValue();
+      fail("Should have thrown exception");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected.getMessage(), containsString("getValue"));
+    }
+  }
+
+  public void testWillReturnEach() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+
+    Dupple.willReturnEach(Arrays.asList("1", "2").iterator()).from(stub)
+        .getEval("a");
+    assertEquals("1", stub.getEval("a"));
+    assertEquals("2", stub.getEval("a"));
+    try {
+      stub.getEval("a");
+    } catch (Error e) {
+      return;
+    }
+    fail("should have failed once exhausted");
+  }
+
+  public void testWillReturnEach_repeatsLast() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+
+    Dupple.willReturnEach(Arrays.asList("1", "2").iterator(),
+        WhenExhausted.REPEAT_LAST).from(stub).getEval("a");
+    stub.getEval("a");
+    assertEquals("2", stub.getEval("a"));
+    assertEquals("2", stub.getEval("a"));
+  }
+
+  public void testWillReturnEach_fallsThrough() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+
+    Dupple.willReturnEach(Arrays.asList("1").iterator(),
+        WhenExhausted.FALL_THROUGH).fromAnyCallTo(stub);
+    Dupple.willReturn("after").from(stub).getEval("a");
+    assertEquals("1", stub.getEval("a"));
+    assertEquals("after", stub.getEval("a"));
+  }
+
+  public void testWillReturnGenerated() {
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+    final int[] count = {0};
+
+    Dupple.willReturnGenerated(new Supplier<String>() {
+      @Override
+      public String get() {
+        return "record" + count[0]++;
+      }
+    }).from(stub).getEval("a");
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("record" + i, stub.getEval("a"));
+    }
+  }
+
+  public void testPermissiveStubSharesDefaultDoubles() {
+    ExampleFactory stub = Dupple.permissiveStub(ExampleFactory.class);
+    assertSame(stub.newExample(), stub.newExample());
+  }
+
+  public void testPermissiveStubSharesDefaultCollections() {
+    ExampleCatalog stub = Dupple.permissiveStub(ExampleCatalog.class);
+    List<String> names = stub.names();
+    assertSame(names, stub.names());
+    assertSame(stub.byName(), stub.byName());
+
+    names.add("shared");
+    assertEquals(0, stub.names().size());
+  }
+
+  public void testPermissiveStubWithFreshDefaults() {
+    ExampleFactory stub =
+        Dupple.permissiveStubWithFreshDefaults(ExampleFactory.class);
+    assertNotSame(stub.newExample(), stub.newExample());
+  }
+
+  public void testSampledRecorder_keepsOneInNButCountsAll()
+      throws Exception {
+    ExampleInterface recorder =
+        Dupple.recording().sampledOneIn(10).of(ExampleInterface.class);
+    for (int i = 0; i < 100; i++) {
+      recorder.getEval("a");
+    }
+    assertEquals(10, Dupple.callsTo(recorder).size());
+    assertEquals(Long.valueOf(100), Dupple.callCounts(recorder).get(
+        ExampleInterface.class.getMethod("getEval", String.class)));
+  }
+
+  public void testSampledRecorder_keepsFixedSamplePerMethod() {
+    ExampleInterface recorder =
+        Dupple.recording().sampledPerMethod(5).of(ExampleInterface.class);
+    for (int i = 0; i < 1000; i++) {
+      recorder.getEval("a" + i);
+    }
+    recorder.keyPress("b", "c");
+    assertEquals(6, Dupple.callsTo(recorder).size());
+    Dupple.assertCalled(recorder).keyPress("b", "c");
+  }
+
+  public void testSampledRecorder_mergesSamplesInOrderWithOtherCalls() {
+    ExampleInterface stub = Dupple.permissiveStub(ExampleInterface.class);
+    ExampleInterface sampled =
+        Dupple.recording().sampledPerMethod(5).around(stub);
+    ExampleInterface recorded = Dupple.recorder(stub);
+    sampled.getEval("a");
+    recorded.getEval("b");
+    sampled.getEval("c");
+    recorded.getEval("d");
+    assertEquals("[getEval(a), getEval(b), getEval(c), getEval(d)]",
+        Dupple.callsTo(recorded).toString());
+    recorded.getEval("e");
+    assertEquals(5, Dupple.callsTo(recorded).size());
+  }
+
+  public void testSampledRecorder_evictsVerifiedSamples() {
+    ExampleInterface recorder = Dupple.recording().sampledPerMethod(5)
+        .evictingVerified().of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.getEval("b");
+    Dupple.assertCalled(recorder).getEval("a");
+    assertEquals("[getEval(b)]", Dupple.callsTo(recorder).toString());
+    Dupple.assertNotCalled(recorder).getEval("a");
+  }
+
+  public void testSampledRecorder_rejectsThreadOrder() {
+    ExampleInterface recorder =
+        Dupple.recording().sampledPerMethod(5).of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.getEval("b");
+    Dupple.assertInOrder(recorder).getEval("a");
+    try {
+      Dupple.assertInThreadOrder(recorder).getEval("a");
+      fail("Should have thrown exception");
+    } catch (UnsupportedOperationException expected) {
+      assertThat(expected.getMessage(), containsString("sampledPerMethod"));
+    }
+  }
+
+  public void testFilteredRecorder_skipsIgnoredMethods() {
+    ExampleInterface recorder =
+        Dupple.recording().ignoring("getEval").of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.keyPress("b", "c");
+    assertEquals(1, Dupple.callsTo(recorder).size());
+    Dupple.assertCalled(recorder).keyPress("b", "c");
+    Dupple.assertNoOtherCalls(recorder);
+  }
+
+  public void testFilteredRecorder_recordsOnlyNamedMethods() {
+    List<String> recorder =
+        Dupple.recording().recordingOnly("add").around(
+            new ArrayList<String>());
+    recorder.add(0, "a");
+    recorder.size();
+    recorder.toString();
+    assertEquals(1, Dupple.callsTo(recorder).size());
+  }
+
+  public void testAssertCalledWithin_waitsForCallFromAnotherThread()
+      throws Exception {
+    final ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        recorder.getEval("b");
+        recorder.keyPress("a", "b");
+      }
+    };
+    caller.start();
+    Dupple.assertCalledWithin(recorder, 10, TimeUnit.SECONDS).keyPress("a",
+        "b");
+    caller.join();
+  }
+
+  public void testAssertCalledWithin_wakesForSampledCall() throws Exception {
+    final ExampleInterface recorder =
+        Dupple.recording().sampledPerMethod(5).of(ExampleInterface.class);
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        recorder.keyPress("a", "b");
+      }
+    };
+    caller.start();
+    Dupple.assertCalledWithin(recorder, 10, TimeUnit.SECONDS).keyPress("a",
+        "b");
+    caller.join();
+  }
+
+  public void testAssertCalledWithin_failsAfterTimeout() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.keyPress("a", "c");
+    try {
+      Dupple.assertCalledWithin(recorder, 20, TimeUnit.MILLISECONDS)
+          .keyPress("a", "b");
+    } catch (AssertionError e) {
+      assertThat(e.getMessage(), containsString("within 20ms"));
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testAssertNotCalledWithin() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.keyPress("a", "c");
+    Dupple.assertNotCalledWithin(recorder, 20, TimeUnit.MILLISECONDS)
+        .keyPress("a", "b");
+  }
+
+  public void testCheckpoint_onlyLooksAtLaterCalls() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.keyPress("a", "b");
+    Checkpoint<ExampleInterface> checkpoint = Dupple.checkpoint(recorder);
+    recorder.answerOnNextPrompt("c");
+
+    Dupple.assertCalledSince(checkpoint).answerOnNextPrompt("c");
+    Dupple.assertNotCalledSince(checkpoint).keyPress("a", "b");
+    Dupple.assertNoOtherCallsSince(checkpoint);
+  }
+
+  public void testCheckpoint_noOtherCallsSinceFails() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    Checkpoint<ExampleInterface> checkpoint = Dupple.checkpoint(recorder);
+    recorder.answerOnNextPrompt("c");
+    try {
+      Dupple.assertNoOtherCallsSince(checkpoint);
+    } catch (AssertionError e) {
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testAssertInOrder_passesInRecordedOrder() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.keyPress("a", "b");
+    recorder.getEval("x");
+    recorder.answerOnNextPrompt("c");
+
+    ExampleInterface inOrder = Dupple.assertInOrder(recorder);
+    inOrder.keyPress("a", "b");
+    inOrder.answerOnNextPrompt("c");
+  }
+
+  public void testAssertInOrder_failsOutOfOrder() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.answerOnNextPrompt("c");
+    recorder.keyPress("a", "b");
+
+    ExampleInterface inOrder = Dupple.assertInOrder(recorder);
+    inOrder.keyPress("a", "b");
+    String message = null;
+    try {
+      inOrder.answerOnNextPrompt("c");
+    } catch (AssertionError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("should have thrown assertion error", message);
+    assertTrue(message, message.startsWith("Not invoked in this order: "
+        + "[keyPress(a, b), answerOnNextPrompt(c)]"));
+  }
+
+  public void testCheckpoint_splitsRunOfRepeats() {
+    ExampleInterface recorder =
+        Dupple.recording().collapsingRepeats().of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.getEval("a");
+    Checkpoint<ExampleInterface> checkpoint = Dupple.checkpoint(recorder);
+    recorder.getEval("a");
+
+    Dupple.assertCalledSince(checkpoint).getEval("a");
+    Dupple.assertNoOtherCallsSince(checkpoint);
+    try {
+      Dupple.assertNoOtherCalls(recorder);
+    } catch (AssertionError e) {
+      assertThat(e.getMessage(), containsString("getEval(a) \u00d72"));
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testAssertInOrder_matchesRepeatsInsideARun() {
+    ExampleInterface recorder =
+        Dupple.recording().collapsingRepeats().of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.getEval("a");
+
+    ExampleInterface inOrder = Dupple.assertInThreadOrder(recorder);
+    inOrder.getEval("a");
+    inOrder.getEval("a");
+    try {
+      inOrder.getEval("a");
+    } catch (AssertionError e) {
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testAssertInThreadOrder_findsOrderWithinOneThread()
+      throws Exception {
+    final ExampleInterface recorder =
+        Dupple.recording().stripedByThread().of(ExampleInterface.class);
+    recorder.getEval("second");
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        recorder.getEval("first");
+      }
+    };
+    other.start();
+    other.join();
+    recorder.getEval("third");
+
+    // in sequence order, but split across threads
+    ExampleInterface inOrder = Dupple.assertInOrder(recorder);
+    inOrder.getEval("first");
+    inOrder.getEval("third");
+
+    ExampleInterface inThreadOrder = Dupple.assertInThreadOrder(recorder);
+    inThreadOrder.getEval("second");
+    inThreadOrder.getEval("third");
+
+    String message = null;
+    try {
+      inThreadOrder = Dupple.assertInThreadOrder(recorder);
+      inThreadOrder.getEval("first");
+      inThreadOrder.getEval("third");
+    } catch (AssertionError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("should have thrown assertion error", message);
+    assertThat(message, containsString(": [getEval(second), getEval(third)]"));
+  }
+
+  public void testRecordedCall_isTaggedWithItsThread() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.getEval("b");
+
+    Iterator<RecordedCall> calls = Dupple.calls(recorder).iterator();
+    calls.next();
+    RecordedCall second = calls.next();
+    Thread current = Thread.currentThread();
+    assertEquals(current.getId(), second.getThreadId());
+    assertEquals(current.getName(), second.getThreadName());
+    assertEquals(1, second.getThreadSequence());
+  }
+
+  public void testEvictingRecorder_sameOutcomeWhateverTheLogSize() {
+    for (int unrelated = 0; unrelated < 10; unrelated++) {
+      ExampleInterface recorder =
+          Dupple.recording().evictingVerified().of(ExampleInterface.class);
+      for (int i = 0; i < unrelated; i++) {
+        recorder.keyPress("b", "c");
+      }
+      recorder.getEval("a");
+      Dupple.assertCalled(recorder).getEval("a");
+      Dupple.assertNotCalled(recorder).getEval("a");
+      try {
+        Dupple.assertInOrder(recorder).getEval("a");
+        fail("order check saw an evicted call, with " + unrelated);
+      } catch (AssertionError expected) {
+      }
+      try {
+        Dupple.assertCalled(recorder).getEval("a");
+        fail("verified an evicted call again, with " + unrelated);
+      } catch (AssertionError expected) {
+      }
+      assertEquals(unrelated, Dupple.callsTo(recorder).size());
+    }
+  }
+
+  public void testEvictingRecorder_dropsVerifiedCalls() {
+    ExampleInterface recorder =
+        Dupple.recording().evictingVerified().of(ExampleInterface.class);
+    for (int i = 0; i < 1000; i++) {
+      recorder.getEval("a" + i);
+      Dupple.assertCalled(recorder).getEval("a" + i);
+    }
+    recorder.keyPress("b", "c");
+    assertEquals(1, Dupple.callsTo(recorder).size());
+    try {
+      Dupple.assertNoOtherCalls(recorder);
+    } catch (AssertionError e) {
+      assertThat(e.getMessage(), containsString("keyPress(b, c)"));
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testCollapsingRecorder_storesRepeatsAsOneRun() {
+    ExampleInterface recorder =
+        Dupple.recording().collapsingRepeats().of(ExampleInterface.class);
+    for (int i = 0; i < 10000; i++) {
+      recorder.getEval("poll");
+    }
+    recorder.keyPress("a", "b");
+    String message = null;
+    try {
+      Dupple.assertCalled(recorder).answerOnNextPrompt("c");
+    } catch (AssertionError e) {
+      message = e.getMessage();
+    }
+    assertThat(message, containsString(
+        "{\ngetEval(poll) \u00d710000\nkeyPress(a, b)\n}"));
+    assertEquals(10001, Dupple.callsTo(recorder).size());
+    Dupple.assertCalled(recorder).getEval("poll");
+    Dupple.assertCalled(recorder).keyPress("a", "b");
+    Dupple.assertNoOtherCalls(recorder);
+  }
+
+  public void testCalls_streamsTypedViews() throws Exception {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    recorder.keyPress("a", "b");
+    recorder.getEval("c");
+    recorder.getEval("d");
+
+    Method getEval = ExampleInterface.class.getMethod("getEval", String.class);
+    List<Object> arguments = new ArrayList<Object>();
+    for (Iterator<RecordedCall> it =
+        Dupple.calls(recorder, getEval).iterator(); it.hasNext();) {
+      arguments.add(it.next().getArguments()[0]);
+    }
+    assertEquals(Arrays.asList("c", "d"), arguments);
+    assertEquals(3, Dupple.calls(recorder).parallel().count());
+  }
+
+  public void testCalls_fromCollapsedRunHaveTheirOwnPositions()
+      throws Exception {
+    ExampleInterface recorder =
+        Dupple.recording().collapsingRepeats().of(ExampleInterface.class);
+    recorder.keyPress("a", "b");
+    recorder.getEval("poll");
+    recorder.getEval("poll");
+    recorder.getEval("poll");
+
+    Method getEval = ExampleInterface.class.getMethod("getEval", String.class);
+    List<Long> sequences = new ArrayList<Long>();
+    List<Long> threadSequences = new ArrayList<Long>();
+    for (Iterator<RecordedCall> it =
+        Dupple.calls(recorder, getEval).iterator(); it.hasNext();) {
+      RecordedCall call = it.next();
+      sequences.add(call.getSequence());
+      threadSequences.add(call.getThreadSequence());
+    }
+    long first = sequences.get(0);
+    assertEquals(Arrays.asList(first, first + 1, first + 2), sequences);
+    assertEquals(Arrays.asList(1L, 2L, 3L), threadSequences);
+  }
+
+  public void testCalls_toMethodLeavesOutEvictedCalls()
+      throws Exception {
+    ExampleInterface recorder = Dupple.recording().evictingVerified()
+        .of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.keyPress("b", "c");
+    recorder.getEval("d");
+    Dupple.assertCalled(recorder).getEval("a");
+    Dupple.assertCalled(recorder).keyPress("b", "c");
+
+    Method getEval = ExampleInterface.class.getMethod("getEval", String.class);
+    Iterator<RecordedCall> calls = Dupple.calls(recorder, getEval).iterator();
+    assertEquals("d", calls.next().getArguments()[0]);
+    assertFalse(calls.hasNext());
+  }
+
+  public void testDiffCalls() {
+    ExampleInterface expected = Dupple.recorder(ExampleInterface.class);
+    expected.getEval("a");
+    expected.getEval("b");
+    expected.keyPress("c", "d");
+    ExampleInterface actual = Dupple.recorder(ExampleInterface.class);
+    actual.getEval("a");
+    actual.getEval("x");
+    actual.keyPress("c", "d");
+    actual.answerOnNextPrompt("e");
+
+    assertEquals("~ getEval(b) -> getEval(x)\n+ answerOnNextPrompt(e)", Dupple
+        .diffCalls(expected, actual).toString());
+    assertTrue(Dupple.diffCalls(expected, expected).isEmpty());
+  }
+
+  public void testDiffCalls_normalizesArguments() {
+    ExampleInterface expected = Dupple.recorder(ExampleInterface.class);
+    expected.getEval("time=1");
+    ExampleInterface actual = Dupple.recorder(ExampleInterface.class);
+    actual.getEval("time=2");
+
+    CallDiff diff =
+        Dupple.diffCalls(expected, actual, new ArgumentNormalizer() {
+          @Override
+          public Object normalize(Method method, int index, Object argument) {
+            return ((String) argument).replaceAll("[0-9]", "#");
+          }
+        });
+    assertTrue(diff.isEmpty());
+  }
+
   public void testCallsTo() {
     ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
     assertEquals(0, Dupple.callsTo(recorder).size());
@@ -212,6 +838,227 @@ public class DuppleTest extends TestCase {
     assertEquals(2, Dupple.callsTo(recorder).size());
   }
 
+  public void testRecorder_keepsCallsFromConcurrentThreads()
+      throws Exception {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    callFromFourThreads(recorder);
+    assertEquals(4000, Dupple.callsTo(recorder).size());
+    Dupple.assertCalled(recorder).getEval("thread3");
+  }
+
+  public void testStripedRecorder_mergesCallsFromEveryThread()
+      throws Exception {
+    ExampleInterface recorder =
+        Dupple.recording().stripedByThread().of(ExampleInterface.class);
+    callFromFourThreads(recorder);
+    assertEquals(4000, Dupple.callsTo(recorder).size());
+    Dupple.assertCalled(recorder).getEval("thread3");
+  }
+
+  private void callFromFourThreads(final ExampleInterface recorder)
+      throws InterruptedException {
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final String name = "thread" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            recorder.getEval(name);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread each : threads) {
+      each.join();
+    }
+  }
+
+  public void testStripedRecorder_keepsOrderWithinAThread() {
+    ExampleInterface recorder =
+        Dupple.recording().stripedByThread().of(ExampleInterface.class);
+    recorder.getEval("a");
+    assertEquals(1, Dupple.callsTo(recorder).size());
+    recorder.getEval("b");
+    recorder.getEval("c");
+    assertEquals("[getEval(a), getEval(b), getEval(c)]", Dupple.callsTo(
+        recorder).toString());
+  }
+
+  public void testTrackingConcurrency_sequentialCalls() {
+    ExampleInterface recorder = Dupple.recording().trackingConcurrency()
+        .of(ExampleInterface.class);
+    recorder.getEval("a");
+    recorder.keyPress("a", "b");
+
+    Dupple.assertNeverConcurrent(recorder);
+    ConcurrencyReport report = Dupple.concurrencyOf(recorder);
+    assertEquals(1, report.getMaxConcurrency());
+    assertEquals(0, report.getOverlappingCalls());
+    assertTrue(report.getOverlaps().isEmpty());
+  }
+
+  public void testTrackingConcurrency_catchesOverlappingCalls()
+      throws Exception {
+    final CyclicBarrier bothInside = new CyclicBarrier(2);
+    final ExampleInterface recorder =
+        Dupple.recording().trackingConcurrency().around(
+            new ExampleInterface() {
+              @Override
+              public void keyPress(String locator, String key) {
+              }
+
+              @Override
+              public void answerOnNextPrompt(String answer) {
+              }
+
+              @Override
+              public String getEval(String expression) {
+                try {
+                  bothInside.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                  throw new RuntimeException(e);
+                }
+                return expression;
+              }
+            });
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        recorder.getEval("b");
+      }
+    };
+    other.start();
+    recorder.getEval("a");
+    other.join();
+
+    ConcurrencyReport report = Dupple.concurrencyOf(recorder);
+    assertEquals(2, report.getMaxConcurrency());
+    assertEquals(1, report.getOverlappingCalls());
+    assertEquals("[getEval with getEval]", report.getOverlaps().toString());
+    Dupple.assertMaxConcurrency(recorder, 2);
+    try {
+      Dupple.assertNeverConcurrent(recorder);
+    } catch (AssertionError e) {
+      return;
+    }
+    fail("should have thrown assertion error");
+  }
+
+  public void testConcurrencyOf_untrackedRecorder() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    try {
+      Dupple.concurrencyOf(recorder);
+    } catch (IllegalArgumentException e) {
+      return;
+    }
+    fail("should have thrown IllegalArgumentException");
+  }
+
+  public void testRecorderAroundRealObject() {
+    List<String> recorder = Dupple.recorder(new ArrayList<String>());
+    recorder.add(0, "a");
+    assertEquals(1, recorder.size());
+    Dupple.assertCalled(recorder).add(0, "a");
+  }
+
+  public void testRecorderAroundRealObject_survivesGarbageCollection() {
+    List<String> recorder = Dupple.recorder(new ArrayList<String>());
+    recorder.add(0, "x");
+    collectGarbage();
+    Dupple.assertCalled(recorder).add(0, "x");
+  }
+
+  public void testRegisteredDouble_keepsItsCreatorThroughGarbageCollection() {
+    Object foreign = new Object();
+    Dupple.register(foreign, new JmockDupplery(), ExampleInterface.class);
+    collectGarbage();
+    assertNotNull(ImposterizationRememberer.Util.creatorOrNull(foreign));
+  }
+
+  /**
+   * Runs the collector until an otherwise-unreachable object is cleared.
+   */
+  private void collectGarbage() {
+    WeakReference<Object> canary = new WeakReference<Object>(new Object());
+    for (int i = 0; i < 50 && canary.get() != null; i++) {
+      System.gc();
+    }
+    assertNull("garbage was not collected", canary.get());
+  }
+
+  public void testRegisteredDouble_ofAnotherFramework() {
+    Runnable foreign = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    Dupple.register(foreign, new ForeignDupplery(), Runnable.class);
+    try {
+      Dupple.calls(foreign);
+      fail("Should have thrown exception");
+    } catch (UnsupportedOperationException expected) {
+      assertThat(expected.getMessage(), containsString("ForeignDupplery"));
+    }
+    Runnable recorder = Dupple.recording().around(foreign);
+    recorder.run();
+    assertEquals(1, Dupple.calls(recorder).count());
+  }
+
+  /**
+   * Implements only the public Dupplery interface, as another framework
+   * would.
+   */
+  private static class ForeignDupplery implements Dupplery {
+    @Override
+    public void addNormalExpectation(Expectation expectation) {
+    }
+
+    @Override
+    public void addLowPriorityExpectation(Expectation expectation) {
+    }
+
+    @Override
+    public <T> T assertCalled(T target) {
+      return target;
+    }
+
+    @Override
+    public <T> T assertNotCalled(T target) {
+      return target;
+    }
+
+    @Override
+    public <T> T assertCalledWithStandins(InvocationMatchingRuleset ruleset,
+        T target, boolean shouldHaveCalled) {
+      return target;
+    }
+
+    @Override
+    public void assertNoOtherCalls(Object target) {
+    }
+
+    @Override
+    public List<Object> getInvocations() {
+      return new ArrayList<Object>();
+    }
+
+    @Override
+    public <T> T recordCalls(T target) {
+      return target;
+    }
+  }
+
+  public void testRegisteredDoubleUsesItsCreator() {
+    ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
+    Object foreign = new Object();
+    Dupple.register(foreign, ImposterizationRememberer.Util.creator(recorder),
+        ExampleInterface.class);
+    recorder.getEval("a");
+    assertEquals(1, Dupple.callsTo(foreign).size());
+  }
+
   public void testAssertWhere_passes() {
     ExampleInterface recorder = Dupple.recorder(ExampleInterface.class);
     recorder.getEval("here's sub");
@@ -310,4 +1157,155 @@ public class DuppleTest extends TestCase {
     }
     fail("Should have thrown exception");
   }
+
+  public void testAssertThroughput_passes() {
+    Dupple.assertThroughput(Throughput.atLeast(1, TimeUnit.SECONDS))
+        .warmingUpFor(0, TimeUnit.MILLISECONDS)
+        .runningFor(20, TimeUnit.MILLISECONDS).onThreads(3)
+        .from(Arrays.asList(1, 2, 3)).size();
+  }
+
+  public void testAssertThroughput_failsWithMeasuredRate() {
+    String message = null;
+    try {
+      Dupple.assertThroughput(Throughput.atLeast(1e15, TimeUnit.SECONDS))
+          .warmingUpFor(0, TimeUnit.MILLISECONDS)
+          .runningFor(20, TimeUnit.MILLISECONDS)
+          .from(Arrays.asList(1, 2, 3)).size();
+    } catch (AssertionFailedError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("Should have thrown exception", message);
+    assertThat(message, containsString("[1, 2, 3].size()"));
+    assertThat(message, containsString(" calls/second ("));
+    assertThat(message, containsString("on 1 thread, latency p50="));
+  }
+
+  public void testAssertThroughput_stopsOnException() {
+    try {
+      Dupple.assertThroughput(Throughput.atLeast(1, TimeUnit.SECONDS))
+          .warmingUpFor(0, TimeUnit.MILLISECONDS).onThreads(2)
+          .from(Arrays.asList(1, 2, 3)).get(5);
+    } catch (IndexOutOfBoundsException e) {
+      return;
+    }
+    fail("Should have thrown exception");
+  }
+
+  public void testAssertCompletesWithin_passes() {
+    Dupple.assertCompletesWithin(1, TimeUnit.SECONDS).atPercentile(99)
+        .overRuns(100).warmingUp(10).from(Arrays.asList(1, 2, 3)).size();
+  }
+
+  public void testAssertCompletesWithin_failsWithHistogram() {
+    ExampleInterface slow = new SlowExample();
+    String message = null;
+    try {
+      Dupple.assertCompletesWithin(1, TimeUnit.MILLISECONDS).atPercentile(90)
+          .overRuns(3).from(slow).getEval("a");
+    } catch (AssertionFailedError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("Should have thrown exception", message);
+    assertThat(message, containsString("Expected: p90 within 1.0ms but got "));
+    assertThat(message, containsString(" over 3 runs (p50="));
+    // how the three runs fall into rows depends on timing
+    assertThat(message, containsString("ms |        "));
+    assertThat(message, containsString(" | ####"));
+  }
+
+  public void testLatencyHistogram_drawsOneRowPerDoubling() {
+    LatencyHistogram latencies = new LatencyHistogram();
+    latencies.record(10);
+    latencies.record(12);
+    latencies.record(20);
+    latencies.record(50);
+    latencies.record(60);
+    latencies.record(61);
+    latencies.record(62);
+    assertEquals("  <=    15ns |        2 | ####################\n"
+        + "  <=    31ns |        1 | ##########\n"
+        + "  <=    63ns |        4 | ####################"
+        + "####################\n",
+        latencies.describeDistribution());
+  }
+
+  public void testLatencyPercentile_isExact() {
+    long[] timings = {1000, 1001, 1002, 1003, 1004, 1005, 1006, 1007, 1008,
+        1009};
+    assertEquals(1008, LatencyAssertionBuilder.percentileOf(timings, 90));
+    assertEquals(1009, LatencyAssertionBuilder.percentileOf(timings, 100));
+    assertEquals(1000, LatencyAssertionBuilder.percentileOf(timings, 1));
+    // a histogram rounds up to the top of the bucket
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long each : timings) {
+      histogram.record(each);
+    }
+    assertTrue(histogram.percentile(90) > 1008);
+  }
+
+  public void testLatencyHistogram_describesDistribution() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.record(1001);
+    histogram.record(1002);
+    histogram.record(5000);
+    assertEquals(
+        "  <=  1.02us |        3 | ########################################\n"
+        + "  <=  2.05us |        0 | \n"
+        + "  <=   4.1us |        0 | \n"
+        + "  <=  8.19us |        1 | ##############\n",
+        histogram.describeDistribution());
+  }
+
+  public void testAssertAllocatesAtMost_passes() {
+    Dupple.assertAllocatesAtMost(0).from(Arrays.asList(1, 2, 3)).contains(2);
+  }
+
+  public void testAssertAllocatesAtMost_fails() {
+    String message = null;
+    try {
+      Dupple.assertAllocatesAtMost(0).from(Arrays.asList(1, 2, 3)).toArray();
+    } catch (AssertionFailedError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("Should have thrown exception", message);
+    assertThat(message, containsString(
+        "[1, 2, 3].toArray(), Expected: at most 0 bytes per call but got "));
+  }
+
+  public void testAssertReturnedFor_passes() {
+    List<String> list = new ArrayList<String>();
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 1000; i++) {
+      list.add("s" + i);
+      rows.add(new Object[] {i, i == 500 ? containsString("500") : "s" + i});
+    }
+    Dupple.assertReturnedFor(rows).from(list).get(0);
+    Dupple.assertReturnedFor(rows.stream().limit(10).map(
+        new Function<Object[], Object[]>() {
+          @Override
+          public Object[] apply(Object[] row) {
+            return new Object[] {row[1], true};
+          }
+        })).from(list).contains(null);
+  }
+
+  public void testAssertReturnedFor_reportsEveryMismatchInRowOrder() {
+    String message = null;
+    try {
+      Dupple.assertReturnedFor(Arrays.asList(
+          new Object[] {0, 1},
+          new Object[] {1, 2},
+          new Object[] {2, 4},
+          new Object[] {5, 0})).from(Arrays.asList(1, 2, 3)).get(0);
+    } catch (AssertionFailedError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("Should have thrown exception", message);
+    assertThat(message, containsString(
+        "[1, 2, 3].get with 4 rows, 2 did not return as expected:\n"
+        + "  row 2: get(2), Expected: 4 but got 3\n"
+        + "  row 3: get(5), Expected: 0 but threw "));
+  }
 }
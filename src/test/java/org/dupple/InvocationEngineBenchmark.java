@@ -0,0 +1,76 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import org.dupple.DuppleTest.ExampleInterface;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares what a call to a double costs through each
+ * {@link InvocationEngine}. Not run as part of the test suite. To run:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/test-classes:target/classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main InvocationEngineBenchmark -prof gc
+ * </pre>
+ *
+ * and compare time and {@code gc.alloc.rate.norm} (bytes/op) between the
+ * {@code dupple} and {@code jmock} rows.
+ *
+ * @author Google
+ */
+public class InvocationEngineBenchmark {
+  @State(Scope.Benchmark)
+  public static class Doubles {
+    @Param({"dupple", "jmock"})
+    String engine;
+
+    ExampleInterface stub;
+    ExampleInterface permissiveStub;
+
+    @Setup
+    public void setUp() {
+      JmockDupplery dupplery =
+          new JmockDupplery(InvocationEngine.Util.named(engine));
+      stub = dupplery.stub(ExampleInterface.class);
+      Dupple.willReturn("b").from(stub).getEval("a");
+      permissiveStub = dupplery.permissiveStub(ExampleInterface.class);
+    }
+  }
+
+  @Benchmark
+  public Object stubbedCall(Doubles doubles) {
+    return doubles.stub.getEval("a");
+  }
+
+  @Benchmark
+  public Object defaultValue(Doubles doubles) {
+    return doubles.permissiveStub.getEval("a");
+  }
+
+  @Benchmark
+  public int identityHashCode(Doubles doubles) {
+    return doubles.stub.hashCode();
+  }
+
+  @Benchmark
+  public Object creator(Doubles doubles) {
+    return ((ImposterizationRememberer) doubles.stub).getCreator();
+  }
+}
@@ -17,6 +17,13 @@ package org.dupple;
 import org.dupple.DuppleTest.ExampleInterface;
 
 import junit.framework.TestCase;
+import net.sf.cglib.proxy.Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 
 /**
  * Tests JmockDupplery
@@ -41,4 +48,177 @@ public class JmockDuppleryTest extends TestCase {
 
     assertEquals(1, creator.getInvocations().size());
   }
+
+  public void testRecordCalls_usesOneGeneratedProxyClassPerType() {
+    ExampleInterface first = Dupple.recorder(ExampleInterface.class);
+    ExampleInterface second = Dupple.recorder(ExampleInterface.class);
+    assertSame(first.getClass(), second.getClass());
+    assertEquals(RecorderProxies.class, ((Factory) first).getCallback(0)
+        .getClass().getEnclosingClass());
+  }
+
+  public void testPregeneratedProxies_doNotKeepClassLoadersAlive()
+      throws Exception {
+    WeakReference<ClassLoader> loader = lookUpInThrowawayLoader();
+    for (int i = 0; i < 50 && loader.get() != null; i++) {
+      System.gc();
+    }
+    assertNull(loader.get());
+  }
+
+  private WeakReference<ClassLoader> lookUpInThrowawayLoader()
+      throws Exception {
+    ClassLoader loader = new IsolatingClassLoader(Isolated.class.getName());
+    Class<?> isolated = loader.loadClass(Isolated.class.getName());
+    assertNotSame(Isolated.class, isolated);
+    assertNull(PregeneratedProxies.INSTANCE.newProxy(new Class<?>[] {
+        isolated, ImposterizationRememberer.class}, null));
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  public void testRecorderProxies_doNotKeepClassLoadersAlive()
+      throws Exception {
+    WeakReference<ClassLoader> loader = generateInThrowawayLoader();
+    for (int i = 0; i < 50 && loader.get() != null; i++) {
+      System.gc();
+    }
+    assertNull(loader.get());
+  }
+
+  private WeakReference<ClassLoader> generateInThrowawayLoader()
+      throws Exception {
+    ClassLoader loader = new IsolatingClassLoader(Isolated.class.getName());
+    Class<?> isolated = loader.loadClass(Isolated.class.getName());
+    Class<?>[] interfaces = {isolated, ImposterizationRememberer.class};
+    assertSame(isolated, RecorderProxies.owner(Object.class, interfaces));
+    assertNotNull(RecorderProxies.INSTANCE.recorder(Object.class, interfaces,
+        null));
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+  public interface Isolated {
+    void call();
+  }
+
+  /**
+   * Loads one class itself, and delegates every other.
+   */
+  private static class IsolatingClassLoader extends ClassLoader {
+    private final String isolatedName;
+
+    IsolatingClassLoader(String isolatedName) {
+      super(IsolatingClassLoader.class.getClassLoader());
+      this.isolatedName = isolatedName;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve)
+        throws ClassNotFoundException {
+      if (!name.equals(isolatedName)) {
+        return super.loadClass(name, resolve);
+      }
+      synchronized (getClassLoadingLock(name)) {
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+          byte[] bytes = classBytes(name);
+          loaded = defineClass(name, bytes, 0, bytes.length);
+        }
+        return loaded;
+      }
+    }
+
+    private byte[] classBytes(String name) throws ClassNotFoundException {
+      InputStream in = getParent().getResourceAsStream(
+          name.replace('.', '/') + ".class");
+      if (in == null) {
+        throw new ClassNotFoundException(name);
+      }
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+          bytes.write(buffer, 0, read);
+        }
+        in.close();
+        return bytes.toByteArray();
+      } catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
+    }
+  }
+
+  public void testEngines_answerIdentityAndRemembererAlike() {
+    for (InvocationEngine engine : engines()) {
+      JmockDupplery dupplery = new JmockDupplery(engine);
+      ExampleInterface stub = dupplery.stub(ExampleInterface.class);
+      ExampleInterface other = dupplery.stub(ExampleInterface.class);
+
+      assertEquals(engine.toString(), "exampleInterface", stub.toString());
+      assertTrue(engine.toString(), stub.equals(stub));
+      assertFalse(engine.toString(), stub.equals(other));
+      assertEquals(engine.toString(), System.identityHashCode(stub),
+          stub.hashCode());
+      assertSame(engine.toString(), dupplery,
+          ((ImposterizationRememberer) stub).getCreator());
+      assertSame(engine.toString(), ExampleInterface.class,
+          ((ImposterizationRememberer) stub).getImposterizedClass());
+    }
+  }
+
+  public void testEngines_returnTheSameDefaults() {
+    for (InvocationEngine engine : engines()) {
+      Defaults stub =
+          new JmockDupplery(engine).permissiveStub(Defaults.class, false);
+
+      assertEquals(engine.toString(), 0, stub.getInt());
+      assertEquals(engine.toString(), Long.valueOf(0), stub.getLong());
+      assertEquals(engine.toString(), "", stub.getString());
+      assertEquals(engine.toString(), 0, stub.getArray().length);
+      assertEquals(engine.toString(), "noDefault", stub.getFile().getName());
+      assertNull(engine.toString(), stub.getThread());
+      assertEquals(engine.toString(), "", stub.getRunnable().toString());
+      assertNotSame(engine.toString(), stub.getRunnable(),
+          stub.getRunnable());
+      Defaults other =
+          new JmockDupplery(engine).permissiveStub(Defaults.class, false);
+      assertNotNull(engine.toString(), stub.getObject());
+      assertNotSame(engine.toString(), stub.getObject(), other.getObject());
+    }
+  }
+
+  public void testEngines_namedBySystemProperty() {
+    assertSame(DuppleInvocationEngine.INSTANCE,
+        InvocationEngine.Util.named(null));
+    assertSame(JmockInvocationEngine.INSTANCE,
+        InvocationEngine.Util.named("jmock"));
+    try {
+      InvocationEngine.Util.named("cglib");
+      fail();
+    } catch (IllegalArgumentException expected) {
+      // expected
+    }
+  }
+
+  private InvocationEngine[] engines() {
+    return new InvocationEngine[] {DuppleInvocationEngine.INSTANCE,
+        JmockInvocationEngine.INSTANCE};
+  }
+
+  public interface Defaults {
+    int getInt();
+
+    Long getLong();
+
+    String getString();
+
+    Object[] getArray();
+
+    File getFile();
+
+    Thread getThread();
+
+    Runnable getRunnable();
+
+    Object getObject();
+  }
 }
@@ -0,0 +1,77 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the proxies {@link PregeneratedProxyProcessor} generates for the
+ * interfaces this class lists.
+ *
+ * @author Google
+ */
+@PregenerateProxies(PregeneratedProxiesTest.Greeter.class)
+public class PregeneratedProxiesTest extends TestCase {
+  /**
+   * An interface whose proxies are generated when the tests are compiled
+   */
+  public interface Greeter {
+    String greet(String name);
+
+    void introduce(Greeter other);
+  }
+
+  public void testPregeneratedProxies_usedForDeclaredTypes() {
+    Greeter stub = Dupple.stub(Greeter.class);
+    Greeter recorder = Dupple.recorder(stub);
+    assertEquals("PregeneratedProxiesTest_Greeter_DuppleProxy", stub
+        .getClass().getSimpleName());
+    assertSame(stub.getClass(), recorder.getClass());
+    Greeter quoting = Dupple.willReturn("b").from(stub);
+    assertEquals("PregeneratedProxiesTest_Greeter_DuppleQuotingProxy",
+        quoting.getClass().getSimpleName());
+
+    quoting.greet("a");
+    assertEquals("b", recorder.greet("a"));
+    Dupple.assertCalled(recorder).greet("a");
+  }
+
+  public void testCollapsingRecorder_neverComparesPregeneratedDoubles() {
+    Greeter recorder =
+        Dupple.recording().collapsingRepeats().of(Greeter.class);
+    Greeter other = Dupple.willReturn("b").from(Dupple.stub(Greeter.class));
+    recorder.introduce(other);
+    recorder.introduce(other);
+    String message = null;
+    try {
+      Dupple.assertCalled(recorder).greet("a");
+    } catch (AssertionError e) {
+      message = e.getMessage();
+    }
+    assertNotNull("Should have thrown exception", message);
+    assertFalse(message, message.contains("\u00d7"));
+  }
+
+  public void testDiffCalls_comparesPregeneratedDoublesByType() {
+    Greeter expected = Dupple.recorder(Greeter.class);
+    expected.introduce(Dupple.willReturn("b").from(Dupple.stub(
+        Greeter.class)));
+    Greeter actual = Dupple.recorder(Greeter.class);
+    actual.introduce(Dupple.willReturn("c").from(Dupple.stub(
+        Greeter.class)));
+
+    assertTrue(Dupple.diffCalls(expected, actual).isEmpty());
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.dupple.DuppleTest.ExampleInterface;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures what a recorded call costs, and in particular how many bytes it
+ * allocates. Not run as part of the test suite. To run:
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/test-classes:target/classes:$(cat cp.txt) \
+ *     org.openjdk.jmh.Main RecordingAllocationBenchmark -prof gc
+ * </pre>
+ *
+ * and read {@code gc.alloc.rate.norm} (bytes/op). Recording straight into a
+ * log should cost the argument snapshot plus a few amortized bytes of slot
+ * storage; calls through a recorder proxy add what jMock and the recorded
+ * stub allocate.
+ *
+ * @author Google
+ */
+public class RecordingAllocationBenchmark {
+  /**
+   * A fresh recorder and log for each iteration, so that storage from earlier
+   * iterations does not pile up.
+   */
+  @State(Scope.Benchmark)
+  public static class Recorders {
+    ExampleInterface recorder;
+    InvocationLog log;
+    InvocationLog stripedLog;
+    Object invokedObject = new Object();
+    Method getEval;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws Exception {
+      recorder = Dupple.recorder(ExampleInterface.class);
+      log = new InvocationLog();
+      stripedLog = new InvocationLog();
+      stripedLog.stripeByThread();
+      getEval = ExampleInterface.class.getMethod("getEval", String.class);
+    }
+  }
+
+  @Benchmark
+  public Object callThroughRecorder(Recorders recorders) {
+    return recorders.recorder.getEval("a");
+  }
+
+  @Benchmark
+  public void recordIntoLog(Recorders recorders) {
+    recorders.log.record(recorders.invokedObject, recorders.getEval,
+        new Object[] {"a"});
+  }
+
+  @Benchmark
+  public void recordIntoStripedLog(Recorders recorders) {
+    recorders.stripedLog.record(recorders.invokedObject, recorders.getEval,
+        new Object[] {"a"});
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package org.dupple;
+
+import junit.framework.TestCase;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests StripedInvocationBuffer
+ *
+ * @author Google
+ */
+public class StripedInvocationBufferTest extends TestCase {
+  private final StripedInvocationBuffer buffer = new StripedInvocationBuffer();
+  private final MethodTable methods = new MethodTable();
+  private final AtomicLong sequence = new AtomicLong();
+  private int methodId;
+
+  @Override
+  protected void setUp() throws Exception {
+    methodId = methods.entryFor(Object.class.getMethod("toString")).id;
+  }
+
+  public void testDrainTo_dropsBuffersOfFinishedThreads() throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          record();
+          record();
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    assertEquals(1000, buffer.stripeCount());
+
+    List<DuppleInvocation> batch = new ArrayList<DuppleInvocation>();
+    buffer.drainTo(batch, methods);
+    assertEquals(2000, batch.size());
+    assertEquals(0, buffer.stripeCount());
+  }
+
+  public void testDrainTo_keepsBuffersOfLiveThreads() {
+    record();
+    List<DuppleInvocation> batch = new ArrayList<DuppleInvocation>();
+    buffer.drainTo(batch, methods);
+    assertEquals(1, buffer.stripeCount());
+
+    record();
+    buffer.drainTo(batch, methods);
+    assertEquals(2, batch.size());
+    assertEquals(1, buffer.stripeCount());
+  }
+
+  public void testDiscardedBuffer_isNotKeptByPooledThread() throws Exception {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      WeakReference<Object> argument = pool.submit(
+          new Callable<WeakReference<Object>>() {
+            @Override
+            public WeakReference<Object> call() {
+              Object argument = new Object();
+              new StripedInvocationBuffer().add(this, methodId,
+                  new Object[] {argument}, 0, Thread.currentThread());
+              return new WeakReference<Object>(argument);
+            }
+          }).get();
+      for (int i = 0; i < 50 && argument.get() != null; i++) {
+        System.gc();
+      }
+      assertNull("buffered argument was not collected", argument.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void record() {
+    buffer.add(this, methodId, new Object[0], sequence.getAndIncrement(),
+        Thread.currentThread());
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2009 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.dupple;
+
+import org.dupple.DuppleTest.ExampleInterface;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a single recorder, wrapped around a stub, from a large number of
+ * virtual threads, and reports throughput and the number of distinct stacks at
+ * which a virtual thread was pinned to its carrier.
+ *
+ * Not run as part of the test suite. Usage, on a JDK with virtual threads:
+ *
+ * <pre>
+ * java org.dupple.VirtualThreadRecorderBenchmark [threads] [callsPerThread] [striped]
+ * </pre>
+ *
+ * On older JDKs it falls back to a pool of platform threads, and cannot report
+ * pinning.
+ *
+ * @author Google
+ */
+public class VirtualThreadRecorderBenchmark {
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int callsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    boolean striped = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+    if (System.getProperty("jdk.tracePinnedThreads") == null) {
+      System.setProperty("jdk.tracePinnedThreads", "short");
+    }
+    PrintStream out = System.out;
+    PinCounter pins = new PinCounter(out);
+    System.setOut(new PrintStream(pins, true));
+
+    ExampleInterface stub = Dupple.stub(ExampleInterface.class);
+    Dupple.willReturn("stubbed").from(stub).getEval("a");
+    Dupple.willReturn("default").withLowPriority().fromAnyCallTo(stub);
+    RecorderBuilder builder = Dupple.recording();
+    if (striped) {
+      builder.stripedByThread();
+    }
+    ExampleInterface recorder = builder.around(stub);
+
+    ExecutorService executor = virtualThreadExecutor();
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      executor.execute(callRepeatedly(recorder, callsPerThread));
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.MINUTES);
+    long recordedNanos = System.nanoTime() - start;
+
+    long mergeStart = System.nanoTime();
+    int recorded = Dupple.callsTo(recorder).size();
+    long mergeNanos = System.nanoTime() - mergeStart;
+
+    System.setOut(out);
+    long calls = (long) threads * callsPerThread;
+    System.out.println(String.format(
+        "%s: %d threads x %d calls, striped=%b", executor.getClass()
+            .getSimpleName(), threads, callsPerThread, striped));
+    System.out.println(String.format("  recorded %d of %d calls", recorded,
+        calls));
+    System.out.println(String.format("  %.0f calls/s, merged in %d ms",
+        calls / (recordedNanos / 1e9), mergeNanos / 1000000));
+    System.out.println(String.format("  pinned stacks: %d", pins.count));
+  }
+
+  private static Runnable callRepeatedly(final ExampleInterface recorder,
+      final int times) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < times; i++) {
+          recorder.getEval(i % 2 == 0 ? "a" : "b");
+          Thread.yield();
+        }
+      }
+    };
+  }
+
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod(
+          "newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      System.err.println("No virtual threads on this JDK; using a pool");
+      return Executors.newFixedThreadPool(Runtime.getRuntime()
+          .availableProcessors() * 4);
+    }
+  }
+
+  /**
+   * Passes output through, counting the stacks printed by
+   * -Djdk.tracePinnedThreads=short
+   */
+  private static class PinCounter extends FilterOutputStream {
+    private volatile int count = 0;
+
+    PinCounter(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length)
+        throws IOException {
+      String text = new String(bytes, offset, length, "ISO-8859-1");
+      for (int i = text.indexOf("<== monitors"); i >= 0; i =
+          text.indexOf("<== monitors", i + 1)) {
+        count++;
+      }
+      out.write(bytes, offset, length);
+    }
+  }
+}